@@ -0,0 +1,326 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// builds the hypertree of a whole n-best list in one pass instead of merging trees
+// one by one (-m batch). The result only depends on the set of trees, not on their
+// order, and represents exactly that set:
+// - identical subtrees are shared (they are hash-consed first);
+// - trees with different root labels or arities are alternatives of an OR node;
+// - if trees only differ at one child position, the OR node is placed there;
+// - otherwise trees are grouped by their first differing child (like a trie), and
+//   groups which end up with the same other children are merged back, with an OR
+//   node at that child.
+// Alternatives of OR nodes are sorted so that the output is deterministic.
+class BatchMerger {
+    TreeMerger merger;
+    Metrics metrics; // null if stats are disabled
+    TreeDeduplicator deduplicator = new TreeDeduplicator(); // for canonical ids of input subtrees
+    IdentityHashMap<CompactTree, int[]> canonical = new IdentityHashMap<CompactTree, int[]>();
+    SubtreeInterner interner = new SubtreeInterner(); // for built nodes
+
+    // a subtree of one of the input trees
+    static class Ref {
+        CompactTree tree;
+        int node;
+        int id; // canonical id, equal ids mean identical subtrees
+        Ref(CompactTree tree, int node, int id) {
+            this.tree = tree;
+            this.node = node;
+            this.id = id;
+        }
+    }
+
+    public BatchMerger(TreeMerger merger, Metrics metrics) {
+        this.merger = merger;
+        this.metrics = metrics;
+    }
+
+    public BatchMerger(TreeMerger merger) {
+        this(merger, null);
+    }
+
+    public Node merge(Vector<CompactTree> trees) {
+        long start = metrics == null ? 0 : Metrics.now();
+        Vector<Ref> roots = new Vector<Ref>();
+        for(CompactTree tree: trees) {
+            int treeIds[] = new int[tree.size];
+            deduplicator.intern(tree, tree.root, treeIds);
+            canonical.put(tree, treeIds);
+            roots.add(new Ref(tree, tree.root, treeIds[tree.root]));
+        }
+        Node output = build(distinct(roots));
+        output.setParent(null);
+        if(metrics != null) metrics.time(Metrics.BATCH_BUILD, start);
+        output = merger.minimizeTree(output, metrics);
+        if(merger.keepsScores()) {
+            // built nodes only have the score of one of their trees
+            clearScores(output);
+            for(CompactTree tree: trees) merger.addScore(output, tree, tree.root, tree.score);
+        }
+        return output;
+    }
+
+    static void clearScores(Node tree) {
+        for(Node node: tree.collect()) node.score = Double.NEGATIVE_INFINITY;
+    }
+
+    static Vector<Ref> distinct(Vector<Ref> refs) {
+        HashSet<Integer> seen = new HashSet<Integer>();
+        Vector<Ref> output = new Vector<Ref>();
+        for(Ref ref: refs) {
+            if(seen.add(ref.id)) output.add(ref);
+        }
+        return output;
+    }
+
+    Ref[] children(Ref ref) {
+        CompactTree tree = ref.tree;
+        Ref output[] = new Ref[tree.numChildren[ref.node]];
+        int i = 0;
+        int treeIds[] = canonical.get(tree);
+        for(int child = tree.firstChild[ref.node]; child != -1; child = tree.nextSibling[child]) {
+            output[i++] = new Ref(tree, child, treeIds[child]);
+        }
+        return output;
+    }
+
+    // hypertree representing exactly the given distinct subtrees. Calls on the
+    // alternatives at a position are run from an explicit stack of frames, so that
+    // deep trees do not overflow the call stack.
+    Node build(Vector<Ref> refs) {
+        BuildFrame stack[] = new BuildFrame[16];
+        int top = 0;
+        Node value; // returned by the last call
+        Vector<Ref> call = refs; // next call
+        while(true) {
+            if(call != null) {
+                BuildFrame frame = new BuildFrame(call);
+                call = null;
+                if(frame.result == null) {
+                    if(top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = frame;
+                    continue;
+                }
+                value = frame.result;
+            } else {
+                BuildFrame frame = stack[top - 1];
+                if(frame.next < frame.calls.size()) {
+                    call = frame.calls.get(frame.next++);
+                    continue;
+                }
+                frame.finish();
+                if(frame.result == null) continue; // next phase
+                value = frame.result;
+                stack[--top] = null;
+            }
+            if(top == 0) return value;
+            stack[top - 1].returned(value);
+        }
+    }
+
+    static final int GROUPS = 0, CHILD = 1, PARTITIONS = 2, RESTS = 3;
+
+    // one call of build(): calls are the refs to build before the phase can finish
+    class BuildFrame {
+        Vector<Ref> refs;
+        int phase;
+        Vector<Vector<Ref>> calls = new Vector<Vector<Ref>>();
+        int next; // index of the next call
+        Vector<Node> alternatives = new Vector<Node>();
+        Node result; // null until the call returns
+        Ref children[][];
+        int firstDifference = -1;
+        LinkedHashMap<SubtreeInterner.Key, Vector<Node>> rests = new LinkedHashMap<SubtreeInterner.Key, Vector<Node>>();
+        LinkedHashMap<SubtreeInterner.Key, Vector<Ref>> restAlternatives = new LinkedHashMap<SubtreeInterner.Key, Vector<Ref>>();
+        Vector<Node> restChildren = new Vector<Node>(); // built from restAlternatives
+
+        BuildFrame(Vector<Ref> refs) {
+            this.refs = refs;
+            if(refs.size() == 1) {
+                result = refs.get(0).tree.toNode(refs.get(0).node);
+                return;
+            }
+
+            // different root labels or arities
+            LinkedHashMap<Long, Vector<Ref>> groups = new LinkedHashMap<Long, Vector<Ref>>();
+            for(Ref ref: refs) {
+                long key = ((long) ref.tree.label[ref.node] << 32) | ref.tree.numChildren[ref.node];
+                Vector<Ref> group = groups.get(key);
+                if(group == null) {
+                    group = new Vector<Ref>();
+                    groups.put(key, group);
+                }
+                group.add(ref);
+            }
+            if(groups.size() > 1) {
+                phase = GROUPS;
+                calls.addAll(groups.values());
+                return;
+            }
+
+            // same label and arity, find the positions where children differ
+            children = new Ref[refs.size()][];
+            for(int i = 0; i < refs.size(); i++) children[i] = children(refs.get(i));
+            int arity = children[0].length;
+            int numDifferences = 0;
+            for(int position = 0; position < arity; position++) {
+                for(int i = 1; i < refs.size(); i++) {
+                    if(children[i][position].id != children[0][position].id) {
+                        if(firstDifference == -1) firstDifference = position;
+                        numDifferences++;
+                        break;
+                    }
+                }
+            }
+            if(numDifferences == 1) {
+                Vector<Ref> alternatives = new Vector<Ref>();
+                for(int i = 0; i < refs.size(); i++) alternatives.add(children[i][firstDifference]);
+                phase = CHILD;
+                calls.add(distinct(alternatives));
+                return;
+            }
+
+            // trie: group by the first differing child, build each group
+            LinkedHashMap<Integer, Vector<Ref>> partitions = new LinkedHashMap<Integer, Vector<Ref>>();
+            for(int i = 0; i < refs.size(); i++) {
+                int key = children[i][firstDifference].id;
+                Vector<Ref> partition = partitions.get(key);
+                if(partition == null) {
+                    partition = new Vector<Ref>();
+                    partitions.put(key, partition);
+                }
+                partition.add(refs.get(i));
+            }
+            phase = PARTITIONS;
+            calls.addAll(partitions.values());
+        }
+
+        // value returned by the call for calls.get(next - 1)
+        void returned(Node built) {
+            if(phase == RESTS) {
+                restChildren.add(built);
+                return;
+            }
+            if(phase != PARTITIONS) {
+                alternatives.add(built);
+                return;
+            }
+            // merge back groups that have the same other children
+            if(built.isOrNode) {
+                alternatives.add(built);
+                return;
+            }
+            int arity = built.children.size();
+            int key[] = new int[arity - 1];
+            for(int position = 0, i = 0; position < arity; position++) {
+                if(position == firstDifference) continue;
+                interner.intern(built.children.get(position));
+                key[i++] = interner.subtreeId(built.children.get(position));
+            }
+            SubtreeInterner.Key wrapped = new SubtreeInterner.Key(key);
+            if(!rests.containsKey(wrapped)) {
+                rests.put(wrapped, new Vector<Node>());
+                restAlternatives.put(wrapped, new Vector<Ref>());
+            }
+            rests.get(wrapped).add(built);
+            restAlternatives.get(wrapped).add(children(calls.get(next - 1).get(0))[firstDifference]);
+        }
+
+        // all calls of the phase returned: sets result, or the calls of the next phase
+        void finish() {
+            if(phase == GROUPS) {
+                result = orNode(alternatives);
+            } else if(phase == CHILD) {
+                result = withChild(refs.get(0), firstDifference, alternatives.firstElement());
+            } else if(phase == PARTITIONS) {
+                phase = RESTS;
+                calls.clear();
+                next = 0;
+                for(SubtreeInterner.Key key: rests.keySet()) {
+                    if(rests.get(key).size() > 1) calls.add(restAlternatives.get(key));
+                }
+            } else {
+                int i = 0;
+                for(SubtreeInterner.Key key: rests.keySet()) {
+                    Vector<Node> built = rests.get(key);
+                    Node first = built.firstElement();
+                    if(built.size() > 1) first.children.set(firstDifference, restChildren.get(i++));
+                    alternatives.add(first);
+                }
+                result = alternatives.size() == 1 ? alternatives.firstElement() : orNode(alternatives);
+            }
+        }
+    }
+
+    // copy of ref with the child at position replaced
+    Node withChild(Ref ref, int position, Node child) {
+        CompactTree tree = ref.tree;
+        Node output = new Node(tree.id[ref.node], tree.getLabel(ref.node));
+        tree.copyLabel(ref.node, output);
+        int i = 0;
+        for(int node = tree.firstChild[ref.node]; node != -1; node = tree.nextSibling[node]) {
+            output.children.add(i == position ? child : tree.toNode(node));
+            i++;
+        }
+        return output;
+    }
+
+    Node orNode(Vector<Node> alternatives) {
+        if(metrics != null) metrics.orNodes++;
+        Node output = new Node();
+        output.isOrNode = true;
+        output.label = merger.orSymbol;
+        for(Node alternative: alternatives) {
+            if(alternative.isOrNode) output.children.addAll(alternative.children);
+            else output.children.add(alternative);
+        }
+        Collections.sort(output.children, new Comparator<Node>() {
+            public int compare(Node a, Node b) {
+                return compareStructure(a, b);
+            }
+        });
+        return output;
+    }
+
+    // total order on the structure of hypertrees, independent of input order.
+    // Nodes are compared in preorder.
+    static int compareStructure(Node tree1, Node tree2) {
+        // pairs of nodes still to compare
+        Node stack1[] = new Node[16];
+        Node stack2[] = new Node[16];
+        int top = 0;
+        stack1[top] = tree1;
+        stack2[top++] = tree2;
+        while(top > 0) {
+            top--;
+            Node a = stack1[top], b = stack2[top];
+            if(a.isOrNode != b.isOrNode) return a.isOrNode ? 1 : -1;
+            if(a.label != b.label) {
+                if(a.label == null) return -1;
+                if(b.label == null) return 1;
+                int result = a.label.compareTo(b.label);
+                if(result != 0) return result;
+            }
+            if(a.children.size() != b.children.size()) return a.children.size() < b.children.size() ? -1 : 1;
+            if(top + a.children.size() > stack1.length) {
+                stack1 = Arrays.copyOf(stack1, Math.max(top + a.children.size(), stack1.length * 2));
+                stack2 = Arrays.copyOf(stack2, stack1.length);
+            }
+            // in reverse order so that the first children are compared first
+            for(int i = a.children.size() - 1; i >= 0; i--) {
+                stack1[top] = a.children.get(i);
+                stack2[top++] = b.children.get(i);
+            }
+        }
+        return 0;
+    }
+}
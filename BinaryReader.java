@@ -0,0 +1,199 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// random access to hypergraphs written with -o bin (see BinaryWriter for the format).
+// The file is memory-mapped: opening it only reads the symbols and the sentence
+// index, and states and arcs are read in place, so that the pages can be shared
+// between processes. Files too large to be mapped at once are mapped one sentence
+// at a time.
+class BinaryReader {
+    FileChannel file;
+    MappedByteBuffer mapped; // whole file, null if too large
+    long offsets[];
+    long symbolsOffset;
+    String symbols[];
+    boolean weighted;
+
+    // hypergraph of one sentence, backed by the mapped file
+    public static class HyperGraph {
+        ByteBuffer data;
+        String symbols[];
+        boolean weighted;
+        public int numStates;
+        public int numArcs;
+
+        HyperGraph(ByteBuffer data, String symbols[], boolean weighted) {
+            this.data = data;
+            this.symbols = symbols;
+            this.weighted = weighted;
+            numStates = data.getInt(0);
+            numArcs = data.getInt(4);
+        }
+
+        // arcs leaving state are firstArc(state) to firstArc(state + 1) - 1
+        public int firstArc(int state) {
+            return data.getInt(8 + 4 * state);
+        }
+
+        public int arcTo(int arc) {
+            return data.getInt(8 + 4 * (numStates + 1) + 4 * arc);
+        }
+
+        public int arcLabelId(int arc) {
+            return data.getInt(8 + 4 * (numStates + 1 + numArcs) + 4 * arc);
+        }
+
+        public String arcLabel(int arc) {
+            return symbols[arcLabelId(arc)];
+        }
+
+        // 0 if the file has no weights
+        public double arcWeight(int arc) {
+            if(!weighted) return 0;
+            return data.getDouble(8 + 4 * (numStates + 1 + 2 * numArcs) + 8 * arc);
+        }
+
+        // same text as the fsm output: arcs are listed after the subtree of their end state
+        public void writeFsm(OutputBuffer output) {
+            boolean expanded[] = new boolean[numStates];
+            expanded[0] = true;
+            // states being written, with their next arc
+            int states[] = new int[16];
+            int arcs[] = new int[16];
+            int top = 0;
+            states[top] = 0;
+            arcs[top++] = firstArc(0);
+            while(top > 0) {
+                int state = states[top - 1], arc = arcs[top - 1];
+                if(arc == firstArc(state + 1)) {
+                    top--;
+                    continue;
+                }
+                int to = arcTo(arc);
+                if(!expanded[to]) {
+                    expanded[to] = true;
+                    if(top == states.length) {
+                        states = Arrays.copyOf(states, top * 2);
+                        arcs = Arrays.copyOf(arcs, top * 2);
+                    }
+                    states[top] = to;
+                    arcs[top++] = firstArc(to);
+                    continue;
+                }
+                output.append(state).append(' ').append(to).append(' ').append(arcLabel(arc));
+                if(weighted) output.append(' ').append(arcWeight(arc));
+                output.append('\n');
+                arcs[top - 1]++;
+            }
+            output.append('\n');
+        }
+    }
+
+    public BinaryReader(String filename) throws IOException {
+        file = new FileInputStream(filename).getChannel();
+        long size = file.size();
+        if(size < 32) throw new IOException("not a binary hypergraph file: " + filename);
+        if(size <= Integer.MAX_VALUE) mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer trailer = map(size - 20, size);
+        byte magic[] = new byte[4];
+        trailer.position(16);
+        trailer.get(magic);
+        if(!Arrays.equals(magic, BinaryWriter.MAGIC)) throw new IOException("not a binary hypergraph file: " + filename);
+        symbolsOffset = trailer.getLong(0);
+        long indexOffset = trailer.getLong(8);
+
+        ByteBuffer header = map(0, 12);
+        if(header.getInt(4) != BinaryWriter.VERSION) throw new IOException("unsupported version " + header.getInt(4) + " in " + filename);
+        weighted = (header.getInt(8) & BinaryWriter.WEIGHTED) != 0;
+
+        ByteBuffer data = map(symbolsOffset, indexOffset);
+        symbols = new String[data.getInt()];
+        for(int id = 0; id < symbols.length; id++) {
+            byte symbol[] = new byte[data.getInt()];
+            data.get(symbol);
+            symbols[id] = new String(symbol, SymbolTable.UTF8);
+        }
+
+        ByteBuffer index = map(indexOffset, size - 20);
+        offsets = new long[index.getInt()];
+        for(int i = 0; i < offsets.length; i++) offsets[i] = index.getLong();
+    }
+
+    // little-endian view of bytes start to end of the file
+    ByteBuffer map(long start, long end) throws IOException {
+        ByteBuffer output;
+        if(mapped != null) {
+            output = mapped.duplicate();
+            output.position((int) start);
+            output.limit((int) end);
+            output = output.slice();
+        } else {
+            output = file.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        return output.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int numSentences() {
+        return offsets.length;
+    }
+
+    public String getSymbol(int id) {
+        return symbols[id];
+    }
+
+    public HyperGraph get(int sentence) throws IOException {
+        long end = sentence + 1 < offsets.length ? offsets[sentence + 1] : symbolsOffset;
+        return new HyperGraph(map(offsets[sentence], end), symbols, weighted);
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static void usage() {
+        System.err.println("usage: java BinaryReader <file> [<sentence>...]");
+        System.err.println("   prints the hypergraphs of the given sentences (numbered from 0, all by default) in fsm format");
+        System.exit(1);
+    }
+
+    public static void main(String args[]) {
+        if(args.length == 0 || args[0].equals("-h") || args[0].equals("-help") || args[0].equals("--help")) usage();
+        try {
+            BinaryReader reader = new BinaryReader(args[0]);
+            OutputBuffer out = new OutputBuffer(System.out);
+            if(args.length == 1) {
+                for(int i = 0; i < reader.numSentences(); i++) {
+                    reader.get(i).writeFsm(out);
+                    out.flushIfFull();
+                }
+            } else {
+                for(int i = 1; i < args.length; i++) {
+                    int sentence = Integer.parseInt(args[i]);
+                    if(sentence < 0 || sentence >= reader.numSentences()) {
+                        System.err.println("WARNING: no sentence " + sentence + " in " + args[0]);
+                        continue;
+                    }
+                    reader.get(sentence).writeFsm(out);
+                    out.flushIfFull();
+                }
+            }
+            out.flush();
+            reader.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
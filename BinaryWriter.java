@@ -0,0 +1,115 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// writes hypergraphs in binary form (-o bin), same states and arcs as the fsm output.
+// All numbers are little-endian, ints are 4 bytes and offsets 8 bytes:
+//   header:   "TMHG" version flags
+//   sentence: numStates numArcs firstArc[numStates + 1] arcTo[numArcs] arcLabel[numArcs] [arcWeight[numArcs]]
+//   symbols:  numSymbols (length utf-8-bytes)*
+//   index:    numSentences offset[numSentences]
+//   trailer:  symbolsOffset indexOffset "TMHG"
+// Arcs of a sentence are grouped by source state (arcs leaving state s are
+// firstArc[s] to firstArc[s + 1] - 1) and labels are ids in the symbol table,
+// which is shared by all sentences. If flags has WEIGHTED set, the weights of the
+// fsm output (-w) are stored as 8-byte doubles after the labels. Sentences are
+// written as soon as they are merged, the symbols and the index come last so that
+// the output can be streamed.
+// See BinaryReader for random access.
+class BinaryWriter extends FsmWriter {
+    static final byte MAGIC[] = {'T', 'M', 'H', 'G'};
+    static final int VERSION = 2;
+    static final int WEIGHTED = 1;
+
+    SymbolTable symbols = new SymbolTable();
+    HashMap<String, Integer> labelIds = new HashMap<String, Integer>(); // avoids encoding known labels again
+    Vector<Long> offsets = new Vector<Long>();
+
+    // arcs of the current sentence in fsm order
+    int arcFrom[] = new int[64];
+    int arcTo[] = new int[64];
+    int arcLabel[] = new int[64];
+    double arcWeight[] = new double[64];
+    int numArcs = 0;
+
+    public BinaryWriter(OutputBuffer output, boolean expand, boolean weighted) {
+        super(output, expand, weighted);
+        output.append(MAGIC, 0, MAGIC.length);
+        output.appendBinary(VERSION);
+        output.appendBinary(weighted ? WEIGHTED : 0);
+    }
+
+    public BinaryWriter(OutputBuffer output, boolean expand) {
+        this(output, expand, false);
+    }
+
+    int labelId(String label) {
+        Integer id = labelIds.get(label);
+        if(id == null) {
+            id = symbols.getId(label);
+            labelIds.put(label, id);
+        }
+        return id;
+    }
+
+    void writeArc(int from, int to, String label, double weight) {
+        if(numArcs == arcFrom.length) {
+            arcFrom = Arrays.copyOf(arcFrom, numArcs * 2);
+            arcTo = Arrays.copyOf(arcTo, numArcs * 2);
+            arcLabel = Arrays.copyOf(arcLabel, numArcs * 2);
+            arcWeight = Arrays.copyOf(arcWeight, numArcs * 2);
+        }
+        arcFrom[numArcs] = from;
+        arcTo[numArcs] = to;
+        arcLabel[numArcs] = labelId(label);
+        arcWeight[numArcs] = weight;
+        numArcs++;
+    }
+
+    void writeSentenceEnd() {
+        offsets.add(output.bytesWritten());
+        int numStates = nextState;
+        // counting sort on the source state, keeps the fsm order of arcs leaving a state
+        int firstArc[] = new int[numStates + 1];
+        for(int i = 0; i < numArcs; i++) firstArc[arcFrom[i] + 1]++;
+        for(int state = 0; state < numStates; state++) firstArc[state + 1] += firstArc[state];
+        int next[] = Arrays.copyOf(firstArc, numStates);
+        int order[] = new int[numArcs];
+        for(int i = 0; i < numArcs; i++) order[next[arcFrom[i]]++] = i;
+
+        output.appendBinary(numStates);
+        output.appendBinary(numArcs);
+        for(int state = 0; state <= numStates; state++) output.appendBinary(firstArc[state]);
+        for(int i = 0; i < numArcs; i++) output.appendBinary(arcTo[order[i]]);
+        for(int i = 0; i < numArcs; i++) output.appendBinary(arcLabel[order[i]]);
+        if(weighted) {
+            for(int i = 0; i < numArcs; i++) output.appendBinary(Double.doubleToLongBits(arcWeight[order[i]]));
+        }
+        numArcs = 0;
+    }
+
+    public void close() {
+        if(inSentence) endSentence();
+        long symbolsOffset = output.bytesWritten();
+        output.appendBinary(symbols.size());
+        for(int id = 0; id < symbols.size(); id++) {
+            byte symbol[] = symbols.symbols[id];
+            output.appendBinary(symbol.length);
+            output.append(symbol, 0, symbol.length);
+        }
+        long indexOffset = output.bytesWritten();
+        output.appendBinary(offsets.size());
+        for(long offset: offsets) output.appendBinary(offset);
+        output.appendBinary(symbolsOffset);
+        output.appendBinary(indexOffset);
+        output.append(MAGIC, 0, MAGIC.length);
+    }
+}
@@ -0,0 +1,300 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// reads trees directly from bytes into CompactTree objects, without going through
+// readLine(), split() or intermediate label strings. Same behavior as
+// Node.readCoNLL() and Node.readSexp().
+// Files are memory-mapped, other inputs (stdin) are read through a channel.
+class ByteTreeReader {
+    // returned instead of trees with a score lower than minScore, which are not built
+    public static final CompactTree SKIPPED = new CompactTree(null, 0);
+    public double minScore = Double.NEGATIVE_INFINITY;
+
+    ReadableByteChannel channel;
+    MappedByteBuffer mapped;
+    byte buffer[] = new byte[1 << 16];
+    int position = 0; // start of unread data
+    int limit = 0; // end of valid data
+    int mark = -1; // start of the data kept in the buffer for the current tree, -1 if none
+    boolean eof = false;
+    boolean skipLineFeed = false;
+
+    // current line, trimmed
+    int lineStart, lineEnd;
+
+    byte scratch[] = new byte[256];
+    int fieldStart[] = new int[16];
+    int fieldEnd[] = new int[16];
+
+    public ByteTreeReader(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public ByteTreeReader(MappedByteBuffer mapped) {
+        this.mapped = mapped;
+    }
+
+    public static ByteTreeReader stdin() {
+        return new ByteTreeReader(Channels.newChannel(System.in));
+    }
+
+    // bytes start to end of the file, memory-mapped. If they are too large to be mapped
+    // at once, the file is read through the channel from start to its end instead.
+    // The caller closes the file.
+    public static ByteTreeReader open(FileChannel file, long start, long end) throws IOException {
+        if(end - start > Integer.MAX_VALUE) return new ByteTreeReader(file.position(start));
+        return new ByteTreeReader(file.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+    }
+
+    public void close() throws IOException {
+        if(channel != null) channel.close();
+    }
+
+    // moves unread data (and marked data) to the start of the buffer and appends more input
+    boolean fill() throws IOException {
+        if(eof) return false;
+        int start = mark == -1 ? position : mark;
+        if(start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            position -= start;
+            if(mark != -1) mark = 0;
+        }
+        if(limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        int read;
+        if(mapped != null) {
+            read = Math.min(buffer.length - limit, mapped.remaining());
+            mapped.get(buffer, limit, read);
+            if(read == 0) read = -1;
+        } else {
+            read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+        }
+        if(read == -1) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    // true if more input is available without waiting
+    public boolean hasBufferedInput() {
+        if(position < limit) return true;
+        if(mapped != null) return mapped.hasRemaining();
+        return false;
+    }
+
+    // same line terminators as BufferedReader.readLine(): \n, \r or \r\n
+    boolean nextLine() throws IOException {
+        if(skipLineFeed) {
+            if(position == limit) fill();
+            if(position < limit && buffer[position] == '\n') position++;
+            skipLineFeed = false;
+        }
+        int scan = position;
+        while(true) {
+            for(; scan < limit; scan++) {
+                byte next = buffer[scan];
+                if(next == '\n' || next == '\r') {
+                    setLine(position, scan);
+                    position = scan + 1;
+                    skipLineFeed = (next == '\r');
+                    return true;
+                }
+            }
+            int start = position;
+            if(!fill()) {
+                if(position == limit) return false;
+                setLine(position, limit); // last line without terminator
+                position = limit;
+                return true;
+            }
+            scan -= start - position; // data was moved to the start of the buffer
+        }
+    }
+
+    // same as String.trim()
+    void setLine(int start, int end) {
+        while(start < end && (buffer[start] & 0xff) <= ' ') start++;
+        while(end > start && (buffer[end - 1] & 0xff) <= ' ') end--;
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    String lineAsString() {
+        return new String(buffer, lineStart, lineEnd - lineStart, SymbolTable.UTF8);
+    }
+
+    int parseInt(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if(i < end && (buffer[i] == '-' || buffer[i] == '+')) negative = (buffer[i++] == '-');
+        if(i == end) throw new NumberFormatException("For input string: \"" + new String(buffer, start, end - start, SymbolTable.UTF8) + "\"");
+        int value = 0;
+        for(; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if(digit < 0 || digit > 9) throw new NumberFormatException("For input string: \"" + new String(buffer, start, end - start, SymbolTable.UTF8) + "\"");
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // splits the current line on tabs, trailing empty fields are dropped as in String.split()
+    int splitLine() {
+        int num = 0;
+        int start = lineStart;
+        for(int i = lineStart; i <= lineEnd; i++) {
+            if(i == lineEnd || buffer[i] == '\t') {
+                if(num == fieldStart.length) {
+                    fieldStart = Arrays.copyOf(fieldStart, num * 2);
+                    fieldEnd = Arrays.copyOf(fieldEnd, num * 2);
+                }
+                fieldStart[num] = start;
+                fieldEnd[num] = i;
+                num++;
+                start = i + 1;
+            }
+        }
+        while(num > 0 && fieldStart[num - 1] == fieldEnd[num - 1]) num--;
+        return num;
+    }
+
+    void ensureScratch(int length) {
+        if(scratch.length < length) scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+    }
+
+    boolean isScoreLine() {
+        if(lineEnd - lineStart < CompactTree.LOGPROB.length()) return false;
+        for(int i = 0; i < CompactTree.LOGPROB.length(); i++) {
+            if(buffer[lineStart + i] != CompactTree.LOGPROB.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // the lines of the tree stay in the buffer (from mark) and are copied at once to
+    // tree.text, nodes refer to them by their offsets
+    public CompactTree readCoNLL(SymbolTable symbols) throws IOException {
+        CompactTree tree = new CompactTree(symbols, 64);
+        tree.textStart = new int[tree.id.length];
+        tree.textEnd = new int[tree.id.length];
+        mark = position;
+        try {
+            return readCoNLL(tree);
+        } finally {
+            mark = -1;
+        }
+    }
+
+    CompactTree readCoNLL(CompactTree tree) throws IOException {
+        SymbolTable symbols = tree.symbols;
+        while(true) {
+            if(!nextLine()) return null;
+            if(lineStart < lineEnd && buffer[lineStart] == '#') {
+                if(isScoreLine()) tree.score = CompactTree.parseScore(lineAsString());
+                continue;
+            }
+            if(lineStart == lineEnd) break;
+            if(tree.size == 0 && tree.score < minScore) {
+                mark = -1;
+                while(nextLine() && lineStart < lineEnd) {}
+                return SKIPPED;
+            }
+            int numFields = splitLine();
+            if(numFields < 8) {
+                System.err.println("WARNING: invalid CoNLL format \"" + lineAsString() + "\"");
+                return null;
+            }
+            // label is "<word> <dependency label>"
+            int wordLength = fieldEnd[1] - fieldStart[1];
+            int labelLength = fieldEnd[7] - fieldStart[7];
+            ensureScratch(wordLength + 1 + labelLength);
+            System.arraycopy(buffer, fieldStart[1], scratch, 0, wordLength);
+            scratch[wordLength] = ' ';
+            System.arraycopy(buffer, fieldStart[7], scratch, wordLength + 1, labelLength);
+            int node = tree.addNode(parseInt(fieldStart[0], fieldEnd[0]), symbols.getId(scratch, 0, wordLength + 1 + labelLength));
+            tree.textStart[node] = lineStart - mark;
+            tree.textEnd[node] = lineEnd - mark;
+            tree.parent[node] = parseInt(fieldStart[6], fieldEnd[6]) - 1;
+        }
+        if(tree.size > 0) tree.text = Arrays.copyOfRange(buffer, mark, mark + tree.textEnd[tree.size - 1]);
+        if(!tree.link()) return null;
+        return tree;
+    }
+
+    public CompactTree readSexp(SymbolTable symbols) throws IOException {
+        double score = 0;
+        while(true) {
+            if(!nextLine()) return null;
+            if(lineStart < lineEnd && buffer[lineStart] == '#') {
+                if(isScoreLine()) score = CompactTree.parseScore(lineAsString());
+                continue;
+            }
+            break;
+        }
+        if(lineStart == lineEnd) return null;
+        if(score < minScore) return SKIPPED;
+        if(buffer[lineStart] != '(') {
+            System.err.println("WARNING: malformed s-exp \"" + lineAsString() + "\"");
+            return null;
+        }
+        CompactTree tree = new CompactTree(symbols, (lineEnd - lineStart) / 4);
+        tree.score = score;
+        // open nodes, with their last child; label bytes of open nodes are stacked in scratch
+        int stack[] = new int[16];
+        int lastChild[] = new int[16];
+        int labelStart[] = new int[16];
+        int labelEnd = 0;
+        int depth = 0;
+        tree.root = tree.addNode(0, -1);
+        stack[0] = tree.root;
+        lastChild[0] = -1;
+        labelStart[0] = 0;
+        for(int i = lineStart + 1; i < lineEnd; i++) {
+            byte next = buffer[i];
+            if(next == '(') {
+                int node = tree.addNode(i - lineStart, -1);
+                int parent = stack[depth];
+                tree.parent[node] = parent;
+                if(lastChild[depth] == -1) tree.firstChild[parent] = node;
+                else tree.nextSibling[lastChild[depth]] = node;
+                lastChild[depth] = node;
+                tree.numChildren[parent]++;
+                depth++;
+                if(depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                    lastChild = Arrays.copyOf(lastChild, depth * 2);
+                    labelStart = Arrays.copyOf(labelStart, depth * 2);
+                }
+                stack[depth] = node;
+                lastChild[depth] = -1;
+                labelStart[depth] = labelEnd;
+            } else if(next == ')') {
+                int start = labelStart[depth];
+                int end = labelEnd;
+                while(start < end && (scratch[start] & 0xff) <= ' ') start++;
+                while(end > start && (scratch[end - 1] & 0xff) <= ' ') end--;
+                tree.label[stack[depth]] = symbols.getId(scratch, start, end);
+                labelEnd = labelStart[depth];
+                if(depth == 0) return tree;
+                depth--;
+            } else {
+                ensureScratch(labelEnd + 1);
+                scratch[labelEnd++] = next;
+            }
+        }
+        System.err.println("WARNING: s-exp not properly closed \"" + lineAsString() + "\"");
+        return null;
+    }
+}
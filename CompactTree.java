@@ -0,0 +1,191 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// array-backed tree: node i has label[i] (an id in the symbol table), and links
+// to its parent, first child and next sibling (-1 if none).
+// Input trees are kept in this form and only the subtrees that end up in the
+// hypertree are converted to Node objects (see TreeMerger.mergeAt).
+class CompactTree {
+    public SymbolTable symbols;
+    public int size = 0;
+    public int root = -1;
+    public int id[];
+    public int label[];
+    public int parent[];
+    public int firstChild[];
+    public int nextSibling[];
+    public int numChildren[];
+    // original CoNLL lines, null for s-expressions: the line of node i is
+    // text[textStart[i]] to text[textEnd[i] - 1], the other columns than the label
+    // are only decoded when they are written
+    public byte text[];
+    public int textStart[];
+    public int textEnd[];
+    public double score = 0; // from the "#logprob <score>" comment before the tree, 0 if there is none
+
+    public CompactTree(SymbolTable symbols, int capacity) {
+        this.symbols = symbols;
+        if(capacity < 4) capacity = 4;
+        id = new int[capacity];
+        label = new int[capacity];
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        numChildren = new int[capacity];
+    }
+
+    void grow() {
+        int capacity = id.length * 2;
+        id = Arrays.copyOf(id, capacity);
+        label = Arrays.copyOf(label, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        numChildren = Arrays.copyOf(numChildren, capacity);
+        if(textStart != null) {
+            textStart = Arrays.copyOf(textStart, capacity);
+            textEnd = Arrays.copyOf(textEnd, capacity);
+        }
+    }
+
+    public int addNode(int nodeId, int nodeLabel) {
+        if(size == id.length) grow();
+        id[size] = nodeId;
+        label[size] = nodeLabel;
+        parent[size] = -1;
+        firstChild[size] = -1;
+        nextSibling[size] = -1;
+        numChildren[size] = 0;
+        return size++;
+    }
+
+    public String getLabel(int node) {
+        return symbols.get(label[node]);
+    }
+
+    // children are kept sorted by id, as in Node.sortChildren()
+    void sortChildren() {
+        int children[] = new int[4];
+        for(int node = 0; node < size; node++) {
+            if(numChildren[node] < 2) continue;
+            boolean sorted = true;
+            for(int child = firstChild[node]; nextSibling[child] != -1; child = nextSibling[child]) {
+                if(id[nextSibling[child]] < id[child]) {
+                    sorted = false;
+                    break;
+                }
+            }
+            if(sorted) continue;
+            if(children.length < numChildren[node]) children = new int[numChildren[node]];
+            int num = 0;
+            for(int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+                int j = num++;
+                while(j > 0 && id[children[j - 1]] > id[child]) {
+                    children[j] = children[j - 1];
+                    j--;
+                }
+                children[j] = child;
+            }
+            firstChild[node] = children[0];
+            for(int j = 0; j < num; j++) nextSibling[children[j]] = j + 1 < num ? children[j + 1] : -1;
+        }
+    }
+
+    static final String LOGPROB = "#logprob";
+
+    static double parseScore(String line) {
+        try {
+            return Double.parseDouble(line.substring(LOGPROB.length()).trim());
+        } catch(NumberFormatException e) {
+            System.err.println("WARNING: invalid score \"" + line + "\"");
+            return 0;
+        }
+    }
+
+    // builds child lists from parent links, returns false if there is no root
+    boolean link() {
+        for(int node = 0; node < size; node++) {
+            if(parent[node] < -1 || parent[node] >= size) {
+                System.err.println("WARNING: invalid CoNLL head " + (parent[node] + 1) + " for token " + id[node]);
+                return false;
+            }
+        }
+        // prepend in reverse order so that children end up in input order
+        for(int node = size - 1; node >= 0; node--) {
+            int parent = this.parent[node];
+            if(parent == -1) {
+                if(root == -1) root = node;
+            } else {
+                nextSibling[node] = firstChild[parent];
+                firstChild[parent] = node;
+                numChildren[parent]++;
+            }
+        }
+        if(root == -1) return false;
+        sortChildren();
+        return true;
+    }
+
+    // materializes the subtree rooted at node, depths are relative to that node
+    public Node toNode(int node) {
+        return toNode(node, 0);
+    }
+
+    Node toNode(int node, int depth) {
+        Node output = newNode(node);
+        output.depth = depth;
+        // converted nodes whose children are not converted yet
+        int stack[] = new int[16];
+        Node converted[] = new Node[16];
+        int top = 0;
+        stack[top] = node;
+        converted[top++] = output;
+        while(top > 0) {
+            top--;
+            Node parent = converted[top];
+            for(int child = firstChild[stack[top]]; child != -1; child = nextSibling[child]) {
+                Node result = newNode(child);
+                result.depth = parent.depth + 1;
+                result.parent = parent;
+                parent.children.add(result);
+                if(top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    converted = Arrays.copyOf(converted, top * 2);
+                }
+                stack[top] = child;
+                converted[top++] = result;
+            }
+        }
+        return output;
+    }
+
+    Node newNode(int node) {
+        Node output = new Node(id[node], getLabel(node));
+        copyLabel(node, output);
+        output.score = score;
+        return output;
+    }
+
+    // label id and line of the node, the Node shares the bytes of the lines of this tree
+    void copyLabel(int node, Node output) {
+        output.labelId = label[node];
+        if(text != null) {
+            output.text = text;
+            output.textStart = textStart[node];
+            output.textEnd = textEnd[node];
+        }
+    }
+
+    public Node toNode() {
+        return toNode(root);
+    }
+}
@@ -0,0 +1,162 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// writes hypertrees in fsm format, one session per sentence:
+//   writer.startSentence(); writer.print(tree); writer.endSentence();
+// all per-sentence tables are dropped in endSentence() so that memory does not
+// grow with the length of the stream.
+// When weighted, arcs have a fourth column: the score of the best tree for the arc
+// from 0 to the root, and for the alternatives of OR nodes, the difference between
+// the best score through the alternative and the best score through the OR node.
+// The weights of a tree sum to its score if it is the best tree of the hypertree,
+// or if it only differs from it in one OR node.
+class FsmWriter {
+    OutputBuffer output;
+    boolean expand;
+    boolean weighted;
+    boolean inSentence = false;
+
+    int nextState = 1;
+    HashMap<Integer, Integer> stateId = new HashMap<Integer, Integer>();
+    SubtreeInterner interner = new SubtreeInterner();
+
+    // counters over the lifetime of the writer
+    public long sentences = 0;
+    public long statesEmitted = 0;
+    public long reuseHits = 0;
+    public int peakMapSize = 0;
+
+    public FsmWriter(OutputBuffer output, boolean expand, boolean weighted) {
+        this.output = output;
+        this.expand = expand;
+        this.weighted = weighted;
+        interner.weighted = weighted; // states are shared only if weights are the same
+    }
+
+    public FsmWriter(OutputBuffer output, boolean expand) {
+        this(output, expand, false);
+    }
+
+    public void startSentence() {
+        if(inSentence) endSentence();
+        inSentence = true;
+        nextState = 1;
+    }
+
+    public void print(Node tree) {
+        if(!inSentence) startSentence();
+        if(!expand) interner.intern(tree);
+        printArcs(tree, 0, tree.score);
+    }
+
+    public void endSentence() {
+        if(!inSentence) return;
+        writeSentenceEnd();
+        int size = stateId.size() + interner.size();
+        if(size > peakMapSize) peakMapSize = size;
+        stateId.clear();
+        interner.clear();
+        sentences++;
+        inSentence = false;
+    }
+
+    static double weight(Node orNode, Node child) {
+        return child.score - orNode.score;
+    }
+
+    // nodes whose children are being printed, with the arc that leads to them
+    Node stack[] = new Node[16];
+    int stackFrom[] = new int[16];
+    int stackState[] = new int[16];
+    double stackWeight[] = new double[16];
+    int stackNext[] = new int[16];
+
+    // the arc to a node comes after the arcs of its children
+    void printArcs(Node node, int from, double weight) {
+        int top = 0;
+        while(true) {
+            // state of node, its children are printed first if it is new
+            int state = 0;
+            boolean isNew = true;
+            if(expand || node.children.size() == 0) {
+                state = nextState++;
+                statesEmitted++;
+            } else {
+                int key = interner.factorId(node);
+                Integer known = stateId.get(key);
+                if(known != null) {
+                    state = known;
+                    reuseHits++;
+                    isNew = false;
+                } else {
+                    state = nextState++;
+                    statesEmitted++;
+                    stateId.put(key, state);
+                }
+            }
+            if(isNew && node.children.size() > 0) {
+                if(top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    stackFrom = Arrays.copyOf(stackFrom, top * 2);
+                    stackState = Arrays.copyOf(stackState, top * 2);
+                    stackWeight = Arrays.copyOf(stackWeight, top * 2);
+                    stackNext = Arrays.copyOf(stackNext, top * 2);
+                }
+                stack[top] = node;
+                stackFrom[top] = from;
+                stackState[top] = state;
+                stackWeight[top] = weight;
+                stackNext[top] = 0;
+                top++;
+            } else {
+                writeArc(from, state, node.label, weight);
+            }
+            // next child to print, arcs of the nodes that are done
+            node = null;
+            while(top > 0) {
+                Node parent = stack[top - 1];
+                if(stackNext[top - 1] < parent.children.size()) {
+                    node = parent.children.get(stackNext[top - 1]++);
+                    from = stackState[top - 1];
+                    weight = parent.isOrNode ? weight(parent, node) : 0;
+                    break;
+                }
+                top--;
+                writeArc(stackFrom[top], stackState[top], parent.label, stackWeight[top]);
+                stack[top] = null;
+            }
+            if(node == null) return;
+        }
+    }
+
+    void writeArc(int from, int to, String label, double weight) {
+        output.append(from).append(' ').append(to).append(' ').append(label);
+        if(weighted) output.append(' ').append(weight);
+        output.append('\n');
+    }
+
+    void writeSentenceEnd() {
+        output.append('\n');
+    }
+
+    // writes what has to come after the last sentence
+    public void close() {
+    }
+
+    public void addCounts(FsmWriter other) {
+        if(other == null) return;
+        sentences += other.sentences;
+        statesEmitted += other.statesEmitted;
+        reuseHits += other.reuseHits;
+        if(other.peakMapSize > peakMapSize) peakMapSize = other.peakMapSize;
+    }
+}
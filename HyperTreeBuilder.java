@@ -0,0 +1,102 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// incremental merge: each tree is folded into the hypertree as soon as it is added,
+// so that the caller does not need to keep the whole n-best list in memory
+//   HyperTreeBuilder builder = merger.newBuilder();
+//   while(...) builder.add(tree);
+//   Node hypertree = builder.result();
+// With a budget (--max-nodes, --max-ms), trees added once the hypertree is larger
+// or older than the limit are left out. N-best lists come best first, so the
+// hypertree keeps the best hypotheses, and the cost of a sentence is bounded by the
+// budget plus the merge of one tree.
+class HyperTreeBuilder {
+    TreeMerger merger;
+    Metrics metrics; // null if stats are disabled
+    Node output = null;
+    int numTrees = 0;
+    int numMerged = 0;
+    boolean full = false;
+    public boolean truncated = false; // trees were left out because of the budget
+    long deadline; // nanoseconds, with --max-ms
+
+    public HyperTreeBuilder(TreeMerger merger, Metrics metrics) {
+        this.merger = merger;
+        this.metrics = metrics;
+        if(merger.maxMillis > 0) deadline = System.nanoTime() + merger.maxMillis * 1000000;
+    }
+
+    public HyperTreeBuilder(TreeMerger merger) {
+        this(merger, null);
+    }
+
+    // compact trees are only converted to Node objects where they differ from the hypertree
+    public void add(CompactTree tree) {
+        numTrees++;
+        if(output == null) {
+            output = tree.toNode();
+            numMerged++;
+            return;
+        }
+        if(isFull()) {
+            truncated = true;
+            return;
+        }
+        numMerged++;
+        long start = metrics == null ? 0 : Metrics.now();
+        Vector<Node> nodes = merger.getDifferences(output, tree, tree.root);
+        if(metrics != null) metrics.time(Metrics.GET_DIFFERENCES, start);
+        if(nodes.size() > 0) {
+            merge(nodes, tree, tree.root);
+        }
+        if(merger.keepsScores()) merger.addScore(output, tree, tree.root, tree.score);
+    }
+
+    // merges the subtree at node of the tree at the common parent of the
+    // differences, and minimizes the result
+    void merge(Vector<Node> nodes, CompactTree tree, int node) {
+        long start = metrics == null ? 0 : Metrics.now();
+        Node common = merger.commonParent(nodes);
+        if(metrics != null) {
+            metrics.time(Metrics.COMMON_PARENT, start);
+            metrics.differences += nodes.size();
+            metrics.orNodes++;
+            start = Metrics.now();
+        }
+        Node merged = merger.mergeAt(output, tree, node, common);
+        if(metrics != null) metrics.time(Metrics.MERGE_AT, start);
+        output = merger.minimizeTree(merged, metrics);
+    }
+
+    // true once the hypertree exceeds the budget, further trees are not merged
+    public boolean isFull() {
+        if(full || output == null) return full;
+        if(merger.maxNodes > 0 && output.size() > merger.maxNodes) full = true;
+        else if(merger.maxMillis > 0 && System.nanoTime() > deadline) full = true;
+        return full;
+    }
+
+    // number of trees added so far
+    public int size() {
+        return numTrees;
+    }
+
+    // number of trees folded into the hypertree, the others were left out by the budget
+    public int numMerged() {
+        return numMerged;
+    }
+
+    // the hypertree built so far, null if no tree was added
+    public Node result() {
+        return output;
+    }
+}
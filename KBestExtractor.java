@@ -0,0 +1,243 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// lazy k-best extraction from a hypertree (algorithm 3 of Huang and Chiang, "Better
+// k-best parsing", 2005). Regular nodes have one hyperedge to their children, OR
+// nodes have one hyperedge per alternative, weighted as in the fsm output (see
+// FsmWriter). The score of a tree is the sum of its weights plus the score of the
+// root. Derivations of a node are only computed when a parent asks for them, so
+// the hypertree is never expanded.
+//   for(KBestExtractor.Derivation derivation: new KBestExtractor(hypertree).extract(k))
+//       ... derivation.score ... derivation.toNode() ...
+class KBestExtractor {
+    Node root;
+    IdentityHashMap<Node, State> states = new IdentityHashMap<Node, State>();
+
+    static class Edge {
+        Node head;
+        Node tails[];
+        double weight;
+        int index; // among the edges of head
+    }
+
+    // edge with the rank of the derivation used for each tail, 0 is the best
+    public class Derivation {
+        Edge edge;
+        int ranks[];
+        public double score;
+
+        Derivation(Edge edge, int ranks[]) {
+            this.edge = edge;
+            this.ranks = ranks;
+            score = edge.weight;
+            for(int i = 0; i < ranks.length; i++) score += state(edge.tails[i]).derivations.get(ranks[i]).score;
+        }
+
+        Derivation tail(int i) {
+            return state(edge.tails[i]).derivations.get(ranks[i]);
+        }
+
+        // the tree of this derivation, without OR nodes
+        public Node toNode() {
+            Node output = null;
+            // derivations to convert, and the converted nodes they are children of
+            Derivation stack[] = new Derivation[16];
+            Node parents[] = new Node[16];
+            int top = 0;
+            stack[top++] = this;
+            while(top > 0) {
+                top--;
+                Derivation derivation = stack[top];
+                Node parent = parents[top];
+                while(derivation.edge.head.isOrNode) derivation = derivation.tail(0);
+                Node node = new Node(derivation.edge.head);
+                if(parent == null) {
+                    output = node;
+                } else {
+                    node.parent = parent;
+                    parent.children.add(node);
+                }
+                int num = derivation.ranks.length;
+                if(top + num > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(top + num, stack.length * 2));
+                    parents = Arrays.copyOf(parents, stack.length);
+                }
+                // in reverse order so that children are added in order
+                for(int i = num - 1; i >= 0; i--) {
+                    stack[top] = derivation.tail(i);
+                    parents[top++] = node;
+                }
+            }
+            return output;
+        }
+    }
+
+    static final Comparator<Derivation> BEST_FIRST = new Comparator<Derivation>() {
+        public int compare(Derivation a, Derivation b) {
+            return Double.compare(b.score, a.score);
+        }
+    };
+
+    static class State {
+        Vector<Edge> edges = new Vector<Edge>();
+        Vector<Derivation> derivations = new Vector<Derivation>(); // best first
+        PriorityQueue<Derivation> candidates; // null until the best derivations of all tails are known
+        boolean exhausted; // all derivations are known
+        HashSet<SubtreeInterner.Key> seen = new HashSet<SubtreeInterner.Key>(); // (edge, ranks) of candidates
+    }
+
+    public KBestExtractor(Node root) {
+        this.root = root;
+    }
+
+    State state(Node node) {
+        State state = states.get(node);
+        if(state == null) {
+            state = new State();
+            if(node.isOrNode) {
+                for(Node child: node.children) {
+                    addEdge(state, node, new Node[] {child}, FsmWriter.weight(node, child));
+                }
+            } else {
+                addEdge(state, node, node.children.toArray(new Node[node.children.size()]), 0);
+            }
+            states.put(node, state);
+        }
+        return state;
+    }
+
+    static void addEdge(State state, Node head, Node tails[], double weight) {
+        Edge edge = new Edge();
+        edge.head = head;
+        edge.tails = tails;
+        edge.weight = weight;
+        edge.index = state.edges.size();
+        state.edges.add(edge);
+    }
+
+    static SubtreeInterner.Key key(Edge edge, int ranks[]) {
+        int values[] = new int[ranks.length + 1];
+        values[0] = edge.index;
+        System.arraycopy(ranks, 0, values, 1, ranks.length);
+        return new SubtreeInterner.Key(values);
+    }
+
+    // the derivation of node at the given rank, null if there are not that many
+    Derivation get(Node node, int rank) {
+        // requests whose answer depends on the answers for tails, which are pushed
+        // above them until they are known
+        Node nodes[] = new Node[16];
+        int ranks[] = new int[16];
+        int top = 0;
+        nodes[top] = node;
+        ranks[top++] = rank;
+        while(top > 0) {
+            State state = state(nodes[top - 1]);
+            int needed = ranks[top - 1];
+            int before = top;
+            if(state.candidates == null) {
+                for(Edge edge: state.edges) {
+                    for(Node tail: edge.tails) {
+                        if(!isKnown(tail, 0)) {
+                            if(top == nodes.length) {
+                                nodes = Arrays.copyOf(nodes, top * 2);
+                                ranks = Arrays.copyOf(ranks, top * 2);
+                            }
+                            nodes[top] = tail;
+                            ranks[top++] = 0;
+                        }
+                    }
+                }
+                if(top > before) continue;
+                state.candidates = new PriorityQueue<Derivation>(Math.max(1, state.edges.size()), BEST_FIRST);
+                for(Edge edge: state.edges) {
+                    boolean complete = true;
+                    for(Node tail: edge.tails) {
+                        if(known(tail, 0) == null) complete = false;
+                    }
+                    if(!complete) continue;
+                    int initial[] = new int[edge.tails.length];
+                    state.seen.add(key(edge, initial));
+                    state.candidates.add(new Derivation(edge, initial));
+                }
+            }
+            while(!state.exhausted && state.derivations.size() <= needed) {
+                if(state.derivations.size() > 0) {
+                    // successors of the last derivation need the next derivation of its tails
+                    Derivation last = state.derivations.lastElement();
+                    for(int i = 0; i < last.ranks.length; i++) {
+                        if(!isKnown(last.edge.tails[i], last.ranks[i] + 1)) {
+                            if(top == nodes.length) {
+                                nodes = Arrays.copyOf(nodes, top * 2);
+                                ranks = Arrays.copyOf(ranks, top * 2);
+                            }
+                            nodes[top] = last.edge.tails[i];
+                            ranks[top++] = last.ranks[i] + 1;
+                        }
+                    }
+                    if(top > before) break;
+                    pushNext(state, last);
+                }
+                if(state.candidates.isEmpty()) state.exhausted = true;
+                else state.derivations.add(state.candidates.poll());
+            }
+            if(top == before) top--;
+        }
+        return known(node, rank);
+    }
+
+    // true if get(node, rank) has nothing left to compute
+    boolean isKnown(Node node, int rank) {
+        State state = state(node);
+        return state.candidates != null && (state.exhausted || rank < state.derivations.size());
+    }
+
+    // the derivation of node at the given rank if it is already computed, null otherwise
+    Derivation known(Node node, int rank) {
+        State state = state(node);
+        if(rank < state.derivations.size()) return state.derivations.get(rank);
+        return null;
+    }
+
+    // successors of a derivation: the next derivation of one of its tails, which
+    // must be known
+    void pushNext(State state, Derivation derivation) {
+        Edge edge = derivation.edge;
+        for(int i = 0; i < edge.tails.length; i++) {
+            int ranks[] = derivation.ranks.clone();
+            ranks[i]++;
+            if(known(edge.tails[i], ranks[i]) == null) continue;
+            SubtreeInterner.Key key = key(edge, ranks);
+            if(state.seen.add(key)) state.candidates.add(new Derivation(edge, ranks));
+        }
+    }
+
+    // the k best distinct trees, best first. Scores include the score of the root.
+    // Derivations that give the same tree as a better one are skipped.
+    public Vector<Derivation> extract(int k) {
+        Vector<Derivation> output = new Vector<Derivation>();
+        if(root == null) return output;
+        SubtreeInterner interner = new SubtreeInterner();
+        HashSet<Integer> trees = new HashSet<Integer>();
+        for(int rank = 0; output.size() < k; rank++) {
+            Derivation derivation = get(root, rank);
+            if(derivation == null) break;
+            Node tree = derivation.toNode();
+            interner.intern(tree);
+            if(!trees.add(interner.subtreeId(tree))) continue;
+            Derivation result = new Derivation(derivation.edge, derivation.ranks);
+            result.score += root.score;
+            output.add(result);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,236 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+// keeps a warm TreeMerger behind a local socket (--serve), so that callers do not
+// pay for jvm startup and jit warm-up on each n-best list. A number is a tcp port
+// on the loopback interface, anything else is the path of a unix socket.
+//
+// A connection carries any number of requests, answered in order:
+//   request:  MERGE <input-format> <output-format> <length>\n followed by <length> bytes
+//   response: OK <length>\n followed by <length> bytes, or ERROR <message>\n
+// The body of a request holds one or more n-best lists separated by empty lines,
+// as on stdin, and the response holds what would be written to stdout for them
+// (a whole file for bin). Formats are those of -i and -o, the other options
+// (-n, -u, -b, -m, -w, -k...) are taken from the command line of the server.
+//
+// Each connection has its own thread, up to maxConnections; further connections
+// wait in the listen backlog. The bodies of the requests being read or merged hold
+// at most maxBufferedBytes, and at most numThreads (-j) requests are merged at once:
+// a request that waits for memory or for a slot stops the reading of its
+// connection, so clients that send faster than the server merges are slowed down
+// by flow control.
+//
+// The main() of this class is a client that sends stdin as one request:
+//   java TreeMerger -i conll -o fsm -j 8 --serve 4242 &
+//   cat example3.txt | java MergeServer 4242 conll fsm
+class MergeServer {
+    public int maxConnections = 256;
+    public int maxRequestSize = 64 << 20;
+    public int maxBufferedBytes = 256 << 20; // over all connections, at least maxRequestSize
+
+    TreeMerger merger;
+    Semaphore connections;
+    Semaphore merges;
+    Semaphore buffered; // bytes of request bodies
+
+    public MergeServer(TreeMerger merger) {
+        this.merger = merger;
+    }
+
+    static boolean isPort(String address) {
+        for(int i = 0; i < address.length(); i++) {
+            if(!Character.isDigit(address.charAt(i))) return false;
+        }
+        return address.length() > 0;
+    }
+
+    static SocketAddress socketAddress(String address) {
+        if(isPort(address)) return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    public void serve(String address) {
+        connections = new Semaphore(maxConnections);
+        merges = new Semaphore(Math.max(1, merger.numThreads));
+        buffered = new Semaphore(Math.max(maxBufferedBytes, maxRequestSize), true);
+        merger.lastStats = System.currentTimeMillis();
+        if(merger.metrics != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    synchronized(merger) {
+                        merger.printStats(true);
+                    }
+                }
+            });
+        }
+        try {
+            ServerSocketChannel server;
+            if(isPort(address)) server = ServerSocketChannel.open();
+            else server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(socketAddress(address), maxConnections);
+            if(!isPort(address)) new File(address).deleteOnExit();
+            System.err.println("listening on " + address);
+            while(true) {
+                connections.acquire();
+                final SocketChannel client = server.accept();
+                Thread thread = new Thread() {
+                    public void run() {
+                        try {
+                            handle(client);
+                        } catch (IOException e) {
+                            System.err.println("WARNING: " + e);
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (IOException e) {
+                            }
+                            connections.release();
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // header line without its terminator, null at the end of the connection
+    static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while(true) {
+            int next = input.read();
+            if(next == -1) return line.length() == 0 ? null : line.toString();
+            if(next == '\n') return line.toString();
+            if(next != '\r') line.append((char) next);
+            if(line.length() > 1024) throw new IOException("header too long");
+        }
+    }
+
+    static void error(OutputStream output, String message) throws IOException {
+        output.write(("ERROR " + message + "\n").getBytes(SymbolTable.UTF8));
+        output.flush();
+    }
+
+    void handle(SocketChannel client) throws IOException {
+        InputStream input = new BufferedInputStream(Channels.newInputStream(client));
+        OutputStream output = new BufferedOutputStream(Channels.newOutputStream(client));
+        String header;
+        while(null != (header = readLine(input))) {
+            String tokens[] = header.split(" ");
+            if(tokens.length != 4 || !tokens[0].equals("MERGE") || !isPort(tokens[3]) || tokens[3].length() > 12) {
+                error(output, "malformed request \"" + header + "\"");
+                return;
+            }
+            int inputFormat = TreeMerger.parseInputFormat(tokens[1]);
+            int outputFormat = TreeMerger.parseOutputFormat(tokens[2]);
+            long length = Long.parseLong(tokens[3]);
+            if(length > maxRequestSize) {
+                error(output, "request larger than " + maxRequestSize + " bytes");
+                return;
+            }
+            try {
+                buffered.acquire((int) length);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                byte body[] = new byte[(int) length];
+                new DataInputStream(input).readFully(body);
+                if(inputFormat == -1 || outputFormat == -1) {
+                    error(output, "unknown format in \"" + header + "\"");
+                    continue;
+                }
+                OutputBuffer result;
+                try {
+                    merges.acquire();
+                    try {
+                        result = merge(body, inputFormat, outputFormat);
+                    } finally {
+                        merges.release();
+                    }
+                } catch (Exception e) {
+                    error(output, e.toString().replace('\n', ' '));
+                    continue;
+                }
+                output.write(("OK " + result.length() + "\n").getBytes(SymbolTable.UTF8));
+                result.writeTo(output);
+                output.flush();
+            } finally {
+                buffered.release((int) length);
+            }
+        }
+    }
+
+    // what mergeTrees() would write for this input
+    public OutputBuffer merge(byte body[], int inputFormat, int outputFormat) throws IOException {
+        TreeMerger request = merger.copy();
+        request.inputFormat = inputFormat;
+        request.outputFormat = outputFormat;
+        Metrics metrics = merger.metrics == null ? null : new Metrics();
+        ByteTreeReader input = new ByteTreeReader(Channels.newChannel(new ByteArrayInputStream(body)));
+        OutputBuffer output = new OutputBuffer();
+        FsmWriter fsm = request.newFsmWriter(output);
+        request.mergeAll(input, output, fsm, metrics, null);
+        fsm.close();
+        if(metrics != null) {
+            synchronized(merger) {
+                merger.metrics.add(metrics);
+                merger.printStats(false);
+            }
+        }
+        return output;
+    }
+
+    public static void main(String args[]) {
+        if(args.length < 1 || args.length > 3) {
+            System.err.println("usage: java MergeServer <port|socket> [<input-format> [<output-format>]] < input");
+            System.exit(1);
+        }
+        String inputFormat = args.length > 1 ? args[1] : "sexp";
+        String outputFormat = args.length > 2 ? args[2] : "sexp";
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte buffer[] = new byte[1 << 16];
+            int read;
+            while(-1 != (read = System.in.read(buffer))) body.write(buffer, 0, read);
+            SocketAddress address = socketAddress(args[0]);
+            SocketChannel server;
+            if(isPort(args[0])) server = SocketChannel.open();
+            else server = SocketChannel.open(StandardProtocolFamily.UNIX);
+            server.connect(address);
+            OutputStream output = new BufferedOutputStream(Channels.newOutputStream(server));
+            output.write(("MERGE " + inputFormat + " " + outputFormat + " " + body.size() + "\n").getBytes(SymbolTable.UTF8));
+            body.writeTo(output);
+            output.flush();
+            InputStream input = new BufferedInputStream(Channels.newInputStream(server));
+            String header = readLine(input);
+            if(header == null || !header.startsWith("OK ")) {
+                System.err.println(header == null ? "ERROR connection closed" : header);
+                System.exit(1);
+            }
+            byte result[] = new byte[Integer.parseInt(header.substring(3))];
+            new DataInputStream(input).readFully(result);
+            System.out.write(result);
+            System.out.flush();
+            server.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
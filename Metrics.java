@@ -0,0 +1,132 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+// timers and counters for each stage of the merger (-S). Callers hold a null
+// Metrics when stats are disabled, so the only cost is a null check per stage:
+//   long start = metrics == null ? 0 : Metrics.now();
+//   ... stage ...
+//   if(metrics != null) metrics.time(Metrics.MERGE_AT, start);
+// A Metrics object is not thread-safe: with -j, each sentence has its own, which
+// is added to the global one by the writer thread.
+class Metrics {
+    public static final int READ = 0;
+    public static final int GET_DIFFERENCES = 1;
+    public static final int COMMON_PARENT = 2;
+    public static final int MERGE_AT = 3;
+    public static final int MINIMIZE_TREE = 4;
+    public static final int BATCH_BUILD = 5;
+    public static final int OUTPUT = 6;
+    static final String STAGES[] = {"read", "getDifferences", "commonParent", "mergeAt", "minimizeTree", "batchBuild", "output"};
+
+    long time[] = new long[STAGES.length]; // nanoseconds
+    long calls[] = new long[STAGES.length];
+
+    public long sentences = 0;
+    public long treesRead = 0;
+    public long treesMerged = 0;
+    public long duplicates = 0;
+    public long overBudget = 0; // sentences whose merge stopped at --max-nodes or --max-ms
+    public long nonProjective = 0; // CoNLL outputs with crossing arcs
+    public long differences = 0; // nodes returned by getDifferences()
+    public long orNodes = 0; // created by merges
+    public long redundancyChecks = 0;
+    public long redundancyMemoHits = 0;
+    public long redundancyPruned = 0;
+
+    // per-sentence latency: bucket i counts sentences that took less than 2^i microseconds
+    // (and at least 2^(i-1)), only non-empty buckets are printed
+    long latency[] = new long[32];
+    long maxLatency = 0;
+    long currentSentence = 0; // time spent in stages since the last endSentence()
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public void time(int stage, long start) {
+        long elapsed = System.nanoTime() - start;
+        time[stage] += elapsed;
+        calls[stage]++;
+        currentSentence += elapsed;
+    }
+
+    public void addRedundancyCounts(RedundancyChecker checker) {
+        redundancyChecks += checker.checks;
+        redundancyMemoHits += checker.memoHits;
+        redundancyPruned += checker.pruned;
+    }
+
+    public void endSentence() {
+        long micros = currentSentence / 1000;
+        int bucket = 0;
+        while(bucket < latency.length - 1 && (1L << bucket) <= micros) bucket++;
+        latency[bucket]++;
+        if(micros > maxLatency) maxLatency = micros;
+        currentSentence = 0;
+        sentences++;
+    }
+
+    public void add(Metrics other) {
+        for(int i = 0; i < STAGES.length; i++) {
+            time[i] += other.time[i];
+            calls[i] += other.calls[i];
+        }
+        sentences += other.sentences;
+        treesRead += other.treesRead;
+        treesMerged += other.treesMerged;
+        duplicates += other.duplicates;
+        overBudget += other.overBudget;
+        nonProjective += other.nonProjective;
+        differences += other.differences;
+        orNodes += other.orNodes;
+        redundancyChecks += other.redundancyChecks;
+        redundancyMemoHits += other.redundancyMemoHits;
+        redundancyPruned += other.redundancyPruned;
+        for(int i = 0; i < latency.length; i++) latency[i] += other.latency[i];
+        if(other.maxLatency > maxLatency) maxLatency = other.maxLatency;
+    }
+
+    // one line of json, output counters are taken from the writers
+    public String toJson(FsmWriter fsm, OutputBuffer output) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"sentences\":").append(sentences);
+        json.append(",\"trees\":{\"read\":").append(treesRead).append(",\"merged\":").append(treesMerged);
+        json.append(",\"duplicates\":").append(duplicates).append(",\"overBudget\":").append(overBudget).append('}');
+        json.append(",\"stages\":{");
+        for(int i = 0; i < STAGES.length; i++) {
+            if(i > 0) json.append(',');
+            json.append('"').append(STAGES[i]).append("\":{\"calls\":").append(calls[i]);
+            json.append(",\"ms\":").append(time[i] / 1000000).append('}');
+        }
+        json.append("},\"counters\":{\"differences\":").append(differences);
+        json.append(",\"orNodes\":").append(orNodes);
+        json.append(",\"redundancyChecks\":").append(redundancyChecks);
+        json.append(",\"redundancyMemoHits\":").append(redundancyMemoHits);
+        json.append(",\"redundancyPruned\":").append(redundancyPruned);
+        json.append(",\"nonProjective\":").append(nonProjective);
+        if(fsm != null) {
+            json.append(",\"statesEmitted\":").append(fsm.statesEmitted);
+            json.append(",\"stateReuse\":").append(fsm.reuseHits);
+            json.append(",\"fsmSentences\":").append(fsm.sentences);
+            json.append(",\"peakMapSize\":").append(fsm.peakMapSize);
+        }
+        if(output != null) json.append(",\"bytesWritten\":").append(output.bytesWritten());
+        json.append("},\"latencyMicros\":{\"max\":").append(maxLatency).append(",\"histogram\":[");
+        boolean first = true;
+        for(int i = 0; i < latency.length; i++) {
+            if(latency[i] == 0) continue;
+            if(!first) json.append(',');
+            first = false;
+            json.append("{\"lt\":").append(1L << i).append(",\"count\":").append(latency[i]).append('}');
+        }
+        json.append("]}}");
+        return json.toString();
+    }
+}
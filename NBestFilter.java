@@ -0,0 +1,67 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+// selects the trees of one sentence that are merged, in input order:
+// - trees after the first n (-n, raw position in the n-best list) are dropped;
+// - trees whose score is more than margin below the best kept score are dropped
+//   (-b). Parsers output n-best lists sorted by score, so the first tree is the best;
+// - duplicates of a kept tree are dropped, the kept tree gets the best of their scores;
+// - only the first num distinct trees are kept (-u).
+// minScore() tells the reader which trees can be skipped without being built.
+class NBestFilter {
+    int limit;
+    int maxUnique;
+    double margin;
+
+    TreeDeduplicator deduplicator = new TreeDeduplicator();
+    int numRead = 0;
+    int numKept = 0;
+    double best = Double.NEGATIVE_INFINITY;
+    public CompactTree raised; // kept tree whose score was raised by the last tree, null if none
+
+    public NBestFilter(TreeMerger merger) {
+        limit = merger.limit;
+        maxUnique = merger.maxUnique;
+        margin = merger.margin;
+    }
+
+    // true if the tree has to be merged
+    public boolean accept(CompactTree tree) {
+        numRead++;
+        raised = null;
+        if(tree == ByteTreeReader.SKIPPED) return false;
+        if(limit > 0 && numRead > limit) return false;
+        if(margin >= 0 && tree.score < best - margin) return false;
+        CompactTree duplicate = deduplicator.add(tree);
+        if(duplicate != null) {
+            if(tree.score > duplicate.score) {
+                duplicate.score = tree.score;
+                if(tree.score > best) best = tree.score;
+                raised = duplicate;
+            }
+            return false;
+        }
+        if(maxUnique > 0 && numKept >= maxUnique) return false;
+        numKept++;
+        if(tree.score > best) best = tree.score;
+        return true;
+    }
+
+    // trees with a lower score would not be accepted
+    public double minScore() {
+        if((limit > 0 && numRead >= limit) || (maxUnique > 0 && numKept >= maxUnique)) return Double.POSITIVE_INFINITY;
+        if(margin >= 0 && numKept > 0) return best - margin;
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    public int duplicates() {
+        return deduplicator.duplicates;
+    }
+}
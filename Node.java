@@ -15,142 +15,306 @@ class Node implements Comparable<Node> {
     Node parent;
     public int id;
     public String label;
-    public String originalText;
+    public int labelId = -1; // id of label in the symbol table of the sentence, -1 if unknown
+    // original CoNLL line: text[textStart] to text[textEnd - 1], shared with the other
+    // nodes of the input tree (see ByteTreeReader.readCoNLL), null for s-expressions
+    public byte text[];
+    public int textStart, textEnd;
     public boolean isOrNode;
-    public Vector<Node> children;
+    public ArrayList<Node> children;
+    public int depth; // distance to the root, maintained by setParent() and TreeMerger.minimizeTree()
+    public int subtreeSize; // cached by size(), 0 if unknown. Reset by TreeMerger.mergeAt()
+    public double score; // best #logprob of the input trees going through this node
 
     public Node(int id) {
         this.id = id;
-        children = new Vector<Node>();
+        children = new ArrayList<Node>();
     }
     public Node() {
-        children = new Vector<Node>();
+        children = new ArrayList<Node>();
     }
     public Node(Node peer) {
         id = peer.id;
         label = peer.label;
-        children = new Vector<Node>();
+        labelId = peer.labelId;
+        text = peer.text;
+        textStart = peer.textStart;
+        textEnd = peer.textEnd;
+        children = new ArrayList<Node>();
     }
     public Node(int id, String label) {
         this.id = id;
         this.label = label;
-        children = new Vector<Node>();
+        children = new ArrayList<Node>();
     }
 
     public void setParent(Node parent) {
         this.parent = parent;
-        for(Node child: children) {
-            child.setParent(this);
+        depth = parent == null ? 0 : parent.depth + 1;
+        // parents come before their children in collect(), sizes are summed in reverse
+        Vector<Node> nodes = collect();
+        for(int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            for(Node child: node.children) {
+                child.parent = node;
+                child.depth = node.depth + 1;
+            }
+        }
+        for(int i = nodes.size() - 1; i >= 0; i--) {
+            Node node = nodes.get(i);
+            int size = 1;
+            for(Node child: node.children) size += child.subtreeSize;
+            node.subtreeSize = size;
         }
     }
 
     public String toSexp() {
-        StringBuffer output = new StringBuffer("(");
-        output.append(children.size() == 0 ? label : label.replace(" ", "/"));//.append(":" + id);
-        for(Node child: children) {
-            output.append(" ");
-            output.append(child.toSexp());
-        }
-        output.append(")");
+        OutputBuffer output = new OutputBuffer();
+        writeSexp(output);
         return output.toString();
     }
 
-    public String toCoNLL() {
-        setParent(null);
-        Vector<Node> nodes = collect();
-        Collections.sort(nodes);
-        int savedIds[] = new int[nodes.size()];
-        for(int i = 0; i < nodes.size(); i++) {
-            Node node = nodes.get(i);
-            savedIds[i] = node.id;
-            node.id = (1 + i); // new temporary id
+    public void writeSexp(OutputBuffer output) {
+        // open nodes, with the index of their next child
+        Node stack[] = new Node[16];
+        int next[] = new int[16];
+        int depth = 0;
+        stack[0] = this;
+        next[0] = 0;
+        writeSexpLabel(output);
+        while(depth >= 0) {
+            Node node = stack[depth];
+            if(next[depth] == node.children.size()) {
+                output.append(')');
+                depth--;
+                continue;
+            }
+            Node child = node.children.get(next[depth]++);
+            output.append(' ');
+            child.writeSexpLabel(output);
+            depth++;
+            if(depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+                next = Arrays.copyOf(next, depth * 2);
+            }
+            stack[depth] = child;
+            next[depth] = 0;
         }
-        StringBuffer output = new StringBuffer();
+    }
+
+    void writeSexpLabel(OutputBuffer output) {
+        output.append('(');
+        if(children.size() == 0) output.append(label);
+        else output.appendReplacingSpaces(label);//.append(":" + id);
+    }
+
+    public String toCoNLL() {
+        OutputBuffer output = new OutputBuffer();
+        writeCoNLL(output);
+        return output.toString();
+    }
+
+    public void writeCoNLL(OutputBuffer output) {
+        writeCoNLL(output, false);
+    }
+
+    public void writeCoNLL(OutputBuffer output, boolean projective) {
+        Map<Node, Integer> ids = new IdentityHashMap<Node, Integer>();
+        Vector<Node> nodes = numberCoNLL(projective, ids);
+        int fieldStart[] = new int[16];
+        int fieldEnd[] = new int[16];
         for(int i = 0; i < nodes.size(); i++) {
             Node node = nodes.get(i);
             if(node.isOrNode) {
-                output.append(node.id);
+                output.append(i + 1);
                 for(int j = 0; j < 5; j++) {
                     output.append("\t_");
                 }
-                output.append("\t");
-                if(node.parent != null) output.append(node.parent.id);
-                else output.append("0");
-                output.append("\t");
+                output.append('\t');
+                if(node.parent != null) output.append(ids.get(node.parent));
+                else output.append('0');
+                output.append('\t');
                 output.append(node.label);
             } else {
-                if(node.originalText != null) node.label = node.originalText;
-                String tokens[] = node.label.split("\t");
-                output.append(node.id).append("\t");
+                // same fields as split("\t") of the line, without decoding them
+                byte text[] = node.text;
+                int textStart = node.textStart;
+                int textEnd = node.textEnd;
+                if(text == null) {
+                    text = node.label.getBytes(SymbolTable.UTF8);
+                    textStart = 0;
+                    textEnd = text.length;
+                }
+                int numFields = 0;
+                int start = textStart;
+                while(true) {
+                    int end = nextTab(text, start, textEnd);
+                    if(end == -1) end = textEnd;
+                    if(numFields == fieldStart.length) {
+                        fieldStart = Arrays.copyOf(fieldStart, numFields * 2);
+                        fieldEnd = Arrays.copyOf(fieldEnd, numFields * 2);
+                    }
+                    fieldStart[numFields] = start;
+                    fieldEnd[numFields] = end;
+                    numFields++;
+                    if(end == textEnd) break;
+                    start = end + 1;
+                }
+                while(numFields > 1 && fieldStart[numFields - 1] == fieldEnd[numFields - 1]) numFields--;
+                output.append(i + 1).append('\t');
                 for(int j = 0; j < 5; j++) {
-                    if(j < tokens.length) output.append(tokens[j]);
-                    else output.append("_");
-                    output.append("\t");
+                    if(j < numFields) output.append(text, fieldStart[j], fieldEnd[j]);
+                    else output.append('_');
+                    output.append('\t');
                 }
-                if(node.parent != null) output.append(node.parent.id);
+                if(node.parent != null) output.append(ids.get(node.parent));
                 else output.append(0);
-                output.append("\t");
-                for(int j = 7; j < tokens.length; j++) {
-                    output.append(tokens[j]).append("\t");
+                output.append('\t');
+                for(int j = 7; j < numFields; j++) {
+                    output.append(text, fieldStart[j], fieldEnd[j]).append('\t');
                 }
             }
-            output.append("\n");
+            output.append('\n');
         }
-        for(int i = 0; i < nodes.size(); i++) nodes.get(i).id = savedIds[i];
-        return output.toString();
     }
 
-    public int compareTo(Node o) {
-        if(((Node)o).id < id) return 1;
-        return -1;
+    // standard CoNLL for a tree without OR nodes: the original lines, with ids
+    // renumbered from 1 and the heads updated accordingly
+    public void writeCoNLLTree(OutputBuffer output) {
+        Map<Node, Integer> ids = new IdentityHashMap<Node, Integer>();
+        for(Node node: numberCoNLL(false, ids)) {
+            int head = node.parent == null ? 0 : ids.get(node.parent);
+            output.append(ids.get(node)).append('\t');
+            byte text[] = node.text;
+            if(text == null) {
+                output.append(node.label).append("\t_\t_\t_\t_\t");
+                output.append(head).append("\t_\n");
+                continue;
+            }
+            int first = nextTab(text, node.textStart, node.textEnd) + 1; // skip the id
+            int start = first;
+            for(int j = 1; j < 6 && start > 0; j++) start = nextTab(text, start, node.textEnd) + 1;
+            if(start > 0) output.append(text, first, start);
+            output.append(head);
+            int end = start > 0 ? nextTab(text, start, node.textEnd) : -1; // skip the head
+            if(end != -1) output.append(text, end, node.textEnd);
+            output.append('\n');
+        }
     }
 
-    public boolean equals(Node o) {
-        return ((o.label == null && label == null) || o.label.equals(label)) && o.id == id;
+    // position of the next tab in data[from] to data[end - 1], -1 if there is none
+    static int nextTab(byte data[], int from, int end) {
+        for(int i = from; i < end; i++) {
+            if(data[i] == '\t') return i;
+        }
+        return -1;
     }
 
-    public String factorRepresentation() {
-        StringBuffer output = new StringBuffer("");
-        for(Node child: children) {
-            output.append(child.subTreeRepresentation());
+    // nodes of the tree in CoNLL output order, with their line numbered from 1 in ids.
+    // Nodes are sorted by id, in pre-order for equal ids, so OR nodes (id 0) come
+    // first. With projective, an OR node comes just before the first of its
+    // alternatives instead, so that its arcs stay close to those of the nodes it
+    // stands for.
+    public Vector<Node> numberCoNLL(boolean projective, Map<Node, Integer> ids) {
+        setParent(null);
+        Vector<Node> nodes = collect();
+        int size = nodes.size();
+        for(int i = 0; i < size; i++) ids.put(nodes.get(i), i);
+        // sort keys: position, then OR nodes before words if projective, then pre-order
+        int position[] = new int[size];
+        long keys[] = new long[size];
+        for(int i = size - 1; i >= 0; i--) {
+            Node node = nodes.get(i);
+            position[i] = node.id;
+            long rank = 0;
+            if(projective && node.isOrNode) {
+                for(int j = 0; j < node.children.size(); j++) {
+                    int child = position[ids.get(node.children.get(j))];
+                    if(j == 0 || child < position[i]) position[i] = child;
+                }
+            } else if(projective) {
+                rank = 1;
+            }
+            keys[i] = ((long) position[i] << 32) | (rank << 31) | i;
         }
-        return output.toString();
+        Arrays.sort(keys);
+        Vector<Node> output = new Vector<Node>(size);
+        for(int i = 0; i < size; i++) {
+            Node node = nodes.get((int) (keys[i] & 0x7fffffff));
+            ids.put(node, i + 1);
+            output.add(node);
+        }
+        return output;
     }
 
-    public String subTreeRepresentation() {
-        StringBuffer output = new StringBuffer("(");
-        output.append(label);// + ":" + id);
-        for(Node child: children) {
-            output.append(child.subTreeRepresentation());
-        }
-        output.append(")");
-        return output.toString();
+    public int compareTo(Node o) {
+        return id < o.id ? -1 : (id == o.id ? 0 : 1);
+    }
+
+    // labels of nodes of the same sentence are compared by their id in its symbol table
+    public boolean sameLabel(Node other) {
+        if(labelId >= 0 && other.labelId >= 0) return labelId == other.labelId;
+        return label.equals(other.label);
+    }
+
+    public boolean sameLabel(CompactTree tree, int node) {
+        if(labelId >= 0) return labelId == tree.label[node];
+        return label.equals(tree.getLabel(node));
     }
 
+    public boolean equals(Node o) {
+        return ((o.label == null && label == null) || o.label.equals(label)) && o.id == id;
+    }
+
+    // nodes of the subtree in pre-order (a node before its children)
     public Vector<Node> collect() {
-        Vector<Node> output = new Vector<Node>();
-        output.add(this);
-        for(int i = 0; i < children.size(); i++) {
-            output.addAll(children.get(i).collect());
+        return collect(new Vector<Node>());
+    }
+
+    // same as collect() but the nodes are appended to output, which can be reused between calls
+    public Vector<Node> collect(Vector<Node> output) {
+        Node stack[] = new Node[16];
+        int top = 0;
+        stack[top++] = this;
+        while(top > 0) {
+            Node node = stack[--top];
+            output.add(node);
+            int numChildren = node.children.size();
+            if(top + numChildren > stack.length) stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + numChildren));
+            for(int i = numChildren - 1; i >= 0; i--) stack[top++] = node.children.get(i);
         }
         return output;
     }
+
     public void sortChildren() {
-        Collections.sort(children);
-        for(Node child: children) {
-            child.sortChildren();
+        for(Node node: collect()) {
+            Collections.sort(node.children);
         }
     }
+
     public int size() {
-        int size = 1;
-        for(Node child: children) {
-            size += child.size();
+        if(subtreeSize > 0) return subtreeSize;
+        // nodes without a cached size, parents before children
+        Vector<Node> nodes = new Vector<Node>();
+        nodes.add(this);
+        for(int i = 0; i < nodes.size(); i++) {
+            for(Node child: nodes.get(i).children) {
+                if(child.subtreeSize <= 0) nodes.add(child);
+            }
+        }
+        for(int i = nodes.size() - 1; i >= 0; i--) {
+            Node node = nodes.get(i);
+            int size = 1;
+            for(Node child: node.children) size += child.subtreeSize;
+            node.subtreeSize = size;
         }
-        return size;
+        return subtreeSize;
     }
+
     public Node getRoot() {
-        if(parent != null) return parent.getRoot();
-        return this;
+        Node node = this;
+        while(node.parent != null) node = node.parent;
+        return node;
     }
 
     public static Node readCoNLL(BufferedReader reader) throws IOException {
@@ -169,7 +333,9 @@ class Node implements Comparable<Node> {
                 return null;
             }
             nodes.add(new Node(Integer.parseInt(tokens[0]), tokens[1] + " " + tokens[7]));
-            nodes.lastElement().originalText = line;
+            Node node = nodes.lastElement();
+            node.text = line.getBytes(SymbolTable.UTF8);
+            node.textEnd = node.text.length;
             parentId.add(new Integer(tokens[6]) - 1);
         }
         Node output = null;
@@ -188,24 +354,37 @@ class Node implements Comparable<Node> {
         return output;
     }
 
+    // parses the s-exp starting at from into output, returns the index of its closing parenthesis
     public static int fromSexp(String line, int from, Node output) {
-        StringBuffer label = new StringBuffer();
         if(line.charAt(from) != '(') {
             System.err.println("WARNING: malformed s-exp \"" + line + "\"");
             return -1;
         }
+        // open nodes, with the text of their label
+        Node stack[] = new Node[16];
+        StringBuilder labels[] = new StringBuilder[16];
+        int depth = 0;
+        stack[0] = output;
+        labels[0] = new StringBuilder();
         for(int i = from + 1; i < line.length(); i++) {
             char next = line.charAt(i);
             if(next == '(') {
                 Node child = new Node(i);
-                output.children.add(child);
-                i = fromSexp(line, i, child);
-                if(i == -1) return -1;
+                stack[depth].children.add(child);
+                depth++;
+                if(depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                    labels = Arrays.copyOf(labels, depth * 2);
+                }
+                stack[depth] = child;
+                if(labels[depth] == null) labels[depth] = new StringBuilder();
+                labels[depth].setLength(0);
             } else if(next == ')') {
-                output.label = label.toString().trim();
-                return i;
+                stack[depth].label = labels[depth].toString().trim();
+                if(depth == 0) return i;
+                depth--;
             } else {
-                label.append(next);
+                labels[depth].append(next);
             }
         }
         System.err.println("WARNING: s-exp not properly closed \"" + line + "\"");
@@ -230,19 +409,50 @@ class Node implements Comparable<Node> {
         return output;
     }
 
+    // true if no two arcs cross, the root being attached to 0
     public boolean isProjective() {
         Vector<Node> nodes = collect();
-        for(Node node: nodes) {
-            for(Node peer: nodes) {
-                if(node != peer) {
-                    int a = node.id < node.parent.id ? node.id : node.parent.id;
-                    int b = node.id < node.parent.id ? node.parent.id : node.id;
-                    int c = peer.id < peer.parent.id ? peer.id : peer.parent.id;
-                    int d = peer.id < peer.parent.id ? peer.parent.id : peer.id;
-                    if(a < c && c < b && b < d) return false;
-                    if(c < a && a < d && d < b) return false;
-                }
-            }
+        long arcs[] = new long[nodes.size()];
+        for(int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            arcs[i] = arc(node.id, node == this || node.parent == null ? 0 : node.parent.id);
+        }
+        return isProjective(arcs);
+    }
+
+    // same as isProjective() for the ids written by writeCoNLL()
+    public boolean isProjectiveCoNLL(boolean projective) {
+        Map<Node, Integer> ids = new IdentityHashMap<Node, Integer>();
+        Vector<Node> nodes = numberCoNLL(projective, ids);
+        long arcs[] = new long[nodes.size()];
+        for(int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            arcs[i] = arc(i + 1, node.parent == null ? 0 : ids.get(node.parent));
+        }
+        return isProjective(arcs);
+    }
+
+    // arc between two positions, sorted by left end and then longest first
+    static long arc(int a, int b) {
+        int left = Math.min(a, b);
+        int right = Math.max(a, b);
+        return ((long) left << 32) | (~(right ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    // arcs are visited in sorted order with the right ends of the arcs enclosing the
+    // current position on a stack: an arc crosses one of them iff it ends after the
+    // innermost one, so the test is O(n log n) instead of comparing all pairs
+    static boolean isProjective(long arcs[]) {
+        Arrays.sort(arcs);
+        int open[] = new int[16];
+        int top = 0;
+        for(long arc: arcs) {
+            int left = (int) (arc >> 32);
+            int right = ~(int) arc ^ Integer.MIN_VALUE;
+            while(top > 0 && open[top - 1] <= left) top--;
+            if(top > 0 && open[top - 1] < right) return false;
+            if(top == open.length) open = Arrays.copyOf(open, top * 2);
+            open[top++] = right;
         }
         return true;
     }
@@ -0,0 +1,181 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+import java.io.*;
+
+// reusable byte buffer for the output writers: integers and labels are encoded
+// directly to utf-8 bytes and written to the stream in large batches.
+// Without a stream, the buffer just grows and can be copied with writeTo().
+class OutputBuffer {
+    public static final int FLUSH_SIZE = 1 << 16;
+    public static final long DECIMALS = 1000000; // precision of append(double)
+
+    OutputStream stream;
+    byte buffer[] = new byte[FLUSH_SIZE + 1024];
+    int length = 0;
+    long written = 0;
+
+    public OutputBuffer(OutputStream stream) {
+        this.stream = stream;
+    }
+
+    public OutputBuffer() {
+        this(null);
+    }
+
+    void ensure(int extra) {
+        if(length + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(length + extra, buffer.length * 2));
+    }
+
+    public OutputBuffer append(char c) { // ascii only
+        ensure(1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    public OutputBuffer append(int value) {
+        ensure(11);
+        if(value < 0) {
+            if(value == Integer.MIN_VALUE) return append(Integer.toString(value));
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while(value != 0);
+        for(int i = start, j = length - 1; i < j; i++, j--) {
+            byte swap = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = swap;
+        }
+        return this;
+    }
+
+    // fixed-point with 6 decimals, like the scores of the parser
+    public OutputBuffer append(double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value)) return append(Double.toString(value));
+        long scaled = Math.round(value * DECIMALS);
+        if(scaled < 0) {
+            append('-');
+            scaled = -scaled;
+        }
+        appendDigits(scaled / DECIMALS, 1);
+        append('.');
+        return appendDigits(scaled % DECIMALS, 6);
+    }
+
+    // positive value, left-padded with zeros to at least the given number of digits
+    OutputBuffer appendDigits(long value, int minDigits) {
+        ensure(20);
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+            minDigits--;
+        } while(value != 0 || minDigits > 0);
+        for(int i = start, j = length - 1; i < j; i++, j--) {
+            byte swap = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = swap;
+        }
+        return this;
+    }
+
+    // fixed-width little-endian encodings, for the binary output
+    public OutputBuffer appendBinary(int value) {
+        ensure(4);
+        buffer[length++] = (byte) value;
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) (value >>> 16);
+        buffer[length++] = (byte) (value >>> 24);
+        return this;
+    }
+
+    public OutputBuffer appendBinary(long value) {
+        appendBinary((int) value);
+        return appendBinary((int) (value >>> 32));
+    }
+
+    public OutputBuffer append(String text) {
+        if(text == null) text = "null";
+        return append(text, 0, text.length());
+    }
+
+    public OutputBuffer append(String text, int start, int end) {
+        ensure(end - start);
+        for(int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if(c >= 0x80) { // not ascii, fall back to the encoder for the rest of the range
+                byte encoded[] = text.substring(i, end).getBytes(SymbolTable.UTF8);
+                return append(encoded, 0, encoded.length);
+            }
+            buffer[length++] = (byte) c;
+        }
+        return this;
+    }
+
+    // appends text with all spaces replaced by a slash
+    public OutputBuffer appendReplacingSpaces(String text) {
+        int start = length;
+        append(text);
+        for(int i = start; i < length; i++) {
+            if(buffer[i] == ' ') buffer[i] = '/';
+        }
+        return this;
+    }
+
+    public OutputBuffer append(byte data[], int start, int end) {
+        ensure(end - start);
+        System.arraycopy(data, start, buffer, length, end - start);
+        length += end - start;
+        return this;
+    }
+
+    public OutputBuffer append(OutputBuffer other) {
+        return append(other.buffer, 0, other.length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // bytes that went through this buffer
+    public long bytesWritten() {
+        return written + length;
+    }
+
+    // writes the buffer to the stream if it is large enough
+    public void flushIfFull() throws IOException {
+        if(length >= FLUSH_SIZE) flush();
+    }
+
+    public void flush() throws IOException {
+        if(stream == null) return;
+        stream.write(buffer, 0, length);
+        stream.flush();
+        written += length;
+        length = 0;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        stream.write(buffer, 0, length);
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public String toString() {
+        return new String(buffer, 0, length, SymbolTable.UTF8);
+    }
+}
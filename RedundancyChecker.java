@@ -0,0 +1,145 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// memoized version of TreeMerger.isRedundant() for one minimization round.
+// Subtrees are hash-consed first, so that results can be cached on canonical ids,
+// and each node gets a signature which rules out most pairs without recursion:
+// - if tree2 is redundant given tree1, the trees represented by tree2 are also
+//   represented by tree1, so their heights must lie within those of tree1;
+// - without OR nodes, redundancy is structural equality, i.e. same canonical id.
+// The ids are only valid as long as the subtrees are not modified, which holds in
+// minimizeTree() since OR-node children are compared before being minimized.
+class RedundancyChecker {
+    static class Signature {
+        int subtreeId;
+        int minHeight, maxHeight; // over the trees represented by the node
+        boolean hasOrNode;
+    }
+
+    SubtreeInterner interner = new SubtreeInterner();
+    IdentityHashMap<Node, Signature> signatures = new IdentityHashMap<Node, Signature>();
+    HashMap<Long, Boolean> memo = new HashMap<Long, Boolean>();
+
+    public long checks = 0;
+    public long memoHits = 0;
+    public long pruned = 0;
+
+    public RedundancyChecker(Node tree) {
+        Vector<Node> nodes = tree.collect();
+        // children come after their parent in collect()
+        for(int i = nodes.size() - 1; i >= 0; i--) prepare(nodes.get(i));
+    }
+
+    // the children must be prepared
+    void prepare(Node node) {
+        Signature signature = new Signature();
+        for(int i = 0; i < node.children.size(); i++) {
+            Signature child = signatures.get(node.children.get(i));
+            if(node.isOrNode) {
+                if(i == 0 || child.minHeight < signature.minHeight) signature.minHeight = child.minHeight;
+            } else {
+                if(child.minHeight > signature.minHeight) signature.minHeight = child.minHeight;
+            }
+            if(child.maxHeight > signature.maxHeight) signature.maxHeight = child.maxHeight;
+            signature.hasOrNode |= child.hasOrNode;
+        }
+        if(!node.isOrNode) {
+            signature.minHeight++;
+            signature.maxHeight++;
+        }
+        signature.hasOrNode |= node.isOrNode;
+        signature.subtreeId = interner.internNode(node);
+        signatures.put(node, signature);
+    }
+
+    // pairs being computed, see isRedundant()
+    Node stack1[] = new Node[16];
+    Node stack2[] = new Node[16];
+    int next[] = new int[16];
+
+    public boolean isRedundant(Node tree1, Node tree2) { // tree2 is redundant given tree1
+        Boolean known = lookup(tree1, tree2);
+        if(known != null) return known;
+        // same as TreeMerger.isRedundant(), pairs of children go through the cache
+        int top = 0;
+        push(top++, tree1, tree2);
+        boolean result = false;
+        boolean returned = false; // result is the one of the last pair popped from the stack
+        while(top > 0) {
+            Node node1 = stack1[top - 1], node2 = stack2[top - 1];
+            boolean any = node1.isOrNode && !node2.isOrNode; // one alternative of node1 is enough, otherwise all pairs are needed
+            if(!(returned && result == any)) {
+                returned = false;
+                int i = next[top - 1]++;
+                if(i < (node2.isOrNode ? node2.children.size() : node1.children.size())) {
+                    Node child1 = node2.isOrNode ? node1 : node1.children.get(i);
+                    Node child2 = any ? node2 : node2.children.get(i);
+                    known = lookup(child1, child2);
+                    if(known == null) {
+                        push(top++, child1, child2);
+                    } else {
+                        result = known;
+                        returned = true;
+                    }
+                    continue;
+                }
+                result = !any;
+            }
+            top--;
+            memo.put(key(node1, node2), result);
+            returned = true;
+        }
+        return result;
+    }
+
+    Long key(Node tree1, Node tree2) {
+        return key(signatures.get(tree1), signatures.get(tree2));
+    }
+
+    static Long key(Signature tree1, Signature tree2) {
+        return ((long) tree1.subtreeId << 32) | (tree2.subtreeId & 0xffffffffL);
+    }
+
+    // result of the pair if it is known without looking at the children, null otherwise
+    Boolean lookup(Node tree1, Node tree2) {
+        checks++;
+        Signature signature1 = signatures.get(tree1), signature2 = signatures.get(tree2);
+        if(signature1.subtreeId == signature2.subtreeId) return Boolean.TRUE;
+        if(!(signature1.hasOrNode || signature2.hasOrNode)) {
+            pruned++;
+            return Boolean.FALSE;
+        }
+        if(signature2.minHeight < signature1.minHeight || signature2.maxHeight > signature1.maxHeight) {
+            pruned++;
+            return Boolean.FALSE;
+        }
+        if(!tree1.isOrNode && !tree2.isOrNode && !(tree1.sameLabel(tree2) && tree1.children.size() == tree2.children.size())) {
+            pruned++;
+            return Boolean.FALSE;
+        }
+        if(tree2.isOrNode && !tree1.isOrNode) return Boolean.FALSE; // tree1 should be a or-node
+        Boolean known = memo.get(key(signature1, signature2));
+        if(known != null) memoHits++;
+        return known;
+    }
+
+    void push(int top, Node tree1, Node tree2) {
+        if(top == stack1.length) {
+            stack1 = Arrays.copyOf(stack1, top * 2);
+            stack2 = Arrays.copyOf(stack2, top * 2);
+            next = Arrays.copyOf(next, top * 2);
+        }
+        stack1[top] = tree1;
+        stack2[top] = tree2;
+        next[top] = 0;
+    }
+}
@@ -0,0 +1,226 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+// merges input files instead of stdin. Files are split into shards of about
+// shardSize bytes at sentence boundaries: the empty line after an s-expression
+// n-best list, or the two empty lines after a CoNLL one. Each shard is memory-mapped
+// and merged by one of numThreads workers, so that reading is parallel too.
+// Outputs go either to one file per shard in outputDir (<file>.<shard number>, or
+// <file>.<input number>.<shard number> if several inputs have that name), or to stdout in input order, in which case a bounded number of shards are ahead of
+// the one being written.
+class ShardedMerger {
+    TreeMerger merger;
+    int writtenSentences; // from the current file, so that warnings number sentences in the file
+
+    public ShardedMerger(TreeMerger merger) {
+        this.merger = merger;
+    }
+
+    class ShardTask implements Callable<OutputBuffer> {
+        String filename;
+        String outputName; // of the file in outputDir, without the shard number
+        long start, end;
+        int number; // in the file
+        Metrics metrics; // of this shard, null if stats are disabled
+        FsmWriter fsm;
+        Vector<Node> merged; // binary output to stdout is rendered by the writer, see TreeMerger.SentenceTask
+        int numSentences;
+        Vector<int[]> cuts = new Vector<int[]>(); // sentences of the shard cut by the budget, see TreeMerger.mergeAll()
+        Future<OutputBuffer> result;
+
+        ShardTask(String filename, String outputName, long start, long end, int number) {
+            this.filename = filename;
+            this.outputName = outputName;
+            this.start = start;
+            this.end = end;
+            this.number = number;
+            if(merger.metrics != null) metrics = new Metrics();
+        }
+
+        public OutputBuffer call() throws IOException {
+            FileChannel file = new FileInputStream(filename).getChannel();
+            try {
+                // only the last shard can be too large to be mapped, when no boundary was found
+                ByteTreeReader input = ByteTreeReader.open(file, start, end);
+                if(merger.outputDir != null) {
+                    String name = outputName + "." + String.format("%05d", number);
+                    FileOutputStream stream = new FileOutputStream(new File(merger.outputDir, name));
+                    OutputBuffer output = new OutputBuffer(stream);
+                    fsm = merger.newFsmWriter(output);
+                    numSentences = merger.mergeAll(input, output, fsm, metrics, cuts);
+                    fsm.close();
+                    output.flush();
+                    stream.close();
+                    return null;
+                }
+                if(merger.outputFormat == TreeMerger.OUTPUT_BIN) {
+                    merged = new Vector<Node>();
+                    Node tree;
+                    while(null != (tree = merger.nextSentence(input, metrics))) {
+                        int numMerged = merger.budgetCut(tree);
+                        if(numMerged >= 0) cuts.add(new int[] {numSentences, numMerged});
+                        numSentences++;
+                        merged.add(tree);
+                        if(metrics != null) metrics.endSentence();
+                    }
+                    return null;
+                }
+                OutputBuffer output = new OutputBuffer();
+                fsm = merger.newFsmWriter(output);
+                numSentences = merger.mergeAll(input, output, fsm, metrics, cuts);
+                return output;
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    // files of the directories, in name order, and the other paths as is
+    static Vector<String> listFiles(Vector<String> paths) {
+        Vector<String> output = new Vector<String>();
+        for(String path: paths) {
+            File file = new File(path);
+            if(file.isDirectory()) {
+                File files[] = file.listFiles();
+                Arrays.sort(files);
+                for(File child: files) {
+                    if(child.isFile() && !child.getName().startsWith(".")) output.add(child.getPath());
+                }
+            } else {
+                output.add(path);
+            }
+        }
+        return output;
+    }
+
+    // names of the outputs of the files in outputDir: the name of the file, followed
+    // by its number among the inputs if another input has the same name
+    static Vector<String> outputNames(Vector<String> files) throws IOException {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for(String filename: files) {
+            String name = new File(filename).getName();
+            counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+        }
+        Vector<String> output = new Vector<String>();
+        HashSet<String> taken = new HashSet<String>();
+        for(int i = 0; i < files.size(); i++) {
+            String name = new File(files.get(i)).getName();
+            if(counts.get(name) > 1) name += "." + i;
+            if(!taken.add(name)) throw new IOException("output name " + name + " of " + files.get(i) + " is already taken");
+            output.add(name);
+        }
+        return output;
+    }
+
+    // offset after the first sentence boundary found after from, or the size of the
+    // file. The line containing from is not considered empty.
+    long nextBoundary(FileChannel file, long from) throws IOException {
+        int emptyLinesNeeded = merger.inputFormat == TreeMerger.INPUT_CONLL ? 2 : 1;
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+        long position = from;
+        boolean started = false;
+        boolean empty = false;
+        int emptyLines = 0;
+        while(true) {
+            chunk.clear();
+            int read = file.read(chunk, position);
+            if(read <= 0) return file.size();
+            for(int i = 0; i < read; i++) {
+                byte next = chunk.get(i);
+                if(next == '\n') {
+                    if(started && empty) emptyLines++;
+                    else emptyLines = 0;
+                    if(emptyLines == emptyLinesNeeded) return position + i + 1;
+                    started = true;
+                    empty = true;
+                } else if((next & 0xff) > ' ') {
+                    empty = false;
+                }
+            }
+            position += read;
+        }
+    }
+
+    Vector<ShardTask> split(String filename, String outputName) throws IOException {
+        Vector<ShardTask> output = new Vector<ShardTask>();
+        FileChannel file = new FileInputStream(filename).getChannel();
+        try {
+            long size = file.size();
+            long start = 0;
+            while(start < size) {
+                long end = nextBoundary(file, start + merger.shardSize);
+                output.add(new ShardTask(filename, outputName, start, end, output.size()));
+                start = end;
+            }
+        } finally {
+            file.close();
+        }
+        return output;
+    }
+
+    public void merge(Vector<String> paths) throws Exception {
+        if(merger.outputDir != null) new File(merger.outputDir).mkdirs();
+        int numThreads = Math.max(1, merger.numThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        LinkedList<ShardTask> pending = new LinkedList<ShardTask>();
+        try {
+            Vector<String> files = listFiles(paths);
+            Vector<String> outputNames = outputNames(files);
+            for(int i = 0; i < files.size(); i++) {
+                for(ShardTask task: split(files.get(i), outputNames.get(i))) {
+                    task.result = pool.submit(task);
+                    pending.add(task);
+                    if(pending.size() > numThreads * 2) write(pending.removeFirst());
+                }
+            }
+            while(!pending.isEmpty()) write(pending.removeFirst());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // waits for a shard and writes its output to stdout, in input order. Also reports
+    // the sentences cut by the budget in input order, even with -d.
+    void write(ShardTask task) throws Exception {
+        OutputBuffer output;
+        try {
+            output = task.result.get();
+        } catch (ExecutionException e) {
+            throw new IOException(task.filename + ", shard " + task.number, e.getCause());
+        }
+        if(task.number == 0) writtenSentences = 0;
+        for(int cut[]: task.cuts) TreeMerger.warnBudget(task.filename + " sentence " + (writtenSentences + cut[0]), cut[1]);
+        writtenSentences += task.numSentences;
+        long start = task.metrics == null ? 0 : Metrics.now();
+        if(output != null) {
+            merger.out.append(output);
+        } else if(task.merged != null) {
+            for(Node tree: task.merged) {
+                merger.write(tree, merger.out, merger.fsmWriter);
+                merger.out.flushIfFull();
+            }
+        }
+        merger.out.flush();
+        merger.fsmWriter.addCounts(task.fsm);
+        task.result = null;
+        task.merged = null;
+        if(task.metrics != null) {
+            task.metrics.time(Metrics.OUTPUT, start);
+            merger.metrics.add(task.metrics);
+            merger.printStats(false);
+        }
+    }
+}
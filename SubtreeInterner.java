@@ -0,0 +1,109 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// hash-consing of subtrees: structurally identical subtrees get the same canonical id
+// ids are computed bottom-up from the label id and the canonical ids of the children
+class SubtreeInterner {
+    static class Key {
+        int values[];
+        int hash;
+        Key(int values[]) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+        public int hashCode() {
+            return hash;
+        }
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(values, other.values);
+        }
+    }
+
+    HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    HashMap<Key, Integer> factors = new HashMap<Key, Integer>(); // sequence of children -> id
+    HashMap<Key, Integer> subtrees = new HashMap<Key, Integer>(); // (label, factor) -> id
+    boolean weighted = false; // if set, the weights of the alternatives of OR nodes are part of the factor
+
+    public int labelId(String label) {
+        Integer id = labels.get(label);
+        if(id == null) {
+            id = labels.size();
+            labels.put(label, id);
+        }
+        return id;
+    }
+
+    int intern(HashMap<Key, Integer> table, Key key) {
+        Integer id = table.get(key);
+        if(id == null) {
+            id = table.size();
+            table.put(key, id);
+        }
+        return id;
+    }
+
+    // {factorId, subtreeId} of the nodes interned since the last clear()
+    IdentityHashMap<Node, int[]> ids = new IdentityHashMap<Node, int[]>();
+
+    public int factorId(Node node) {
+        return ids.get(node)[0];
+    }
+
+    public int subtreeId(Node node) {
+        return ids.get(node)[1];
+    }
+
+    Vector<Node> nodes = new Vector<Node>(); // reused by intern()
+
+    // gives a factorId and a subtreeId to every node of the tree
+    public void intern(Node node) {
+        nodes.clear();
+        node.collect(nodes);
+        // children come after their parent in collect()
+        for(int i = nodes.size() - 1; i >= 0; i--) internNode(nodes.get(i));
+        nodes.clear();
+    }
+
+    // same as intern() but the children must already have their ids, returns the subtreeId
+    public int internNode(Node node) {
+        int numChildren = node.children.size();
+        boolean withWeights = weighted && node.isOrNode;
+        int childIds[] = new int[withWeights ? numChildren * 3 : numChildren];
+        for(int i = 0; i < numChildren; i++) {
+            childIds[i] = subtreeId(node.children.get(i));
+        }
+        if(withWeights) { // as printed by FsmWriter
+            for(int i = 0; i < numChildren; i++) {
+                long weight = Math.round(FsmWriter.weight(node, node.children.get(i)) * OutputBuffer.DECIMALS);
+                childIds[numChildren + 2 * i] = (int) weight;
+                childIds[numChildren + 2 * i + 1] = (int) (weight >>> 32);
+            }
+        }
+        int factorId = intern(factors, new Key(childIds));
+        int subtreeId = intern(subtrees, new Key(new int[] {labelId(node.label), factorId, node.isOrNode ? 1 : 0}));
+        ids.put(node, new int[] {factorId, subtreeId});
+        return subtreeId;
+    }
+
+    public int size() {
+        return labels.size() + factors.size() + subtrees.size();
+    }
+
+    public void clear() {
+        labels.clear();
+        factors.clear();
+        subtrees.clear();
+        ids.clear();
+    }
+}
@@ -0,0 +1,88 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+import java.nio.charset.Charset;
+
+// interns labels to int ids; the merger uses one table per sentence so that it
+// does not grow with the length of the input.
+// Symbols are keyed on their utf-8 bytes so that readers can look them up directly
+// from the input buffer, the String is only built when get() is called.
+class SymbolTable {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    byte symbols[][] = new byte[16][];
+    String strings[] = new String[16];
+    int hashes[] = new int[16];
+    int table[] = new int[32]; // open addressing, id + 1 or 0 if empty
+    int size = 0;
+
+    static int hash(byte data[], int start, int end) {
+        int hash = 0;
+        for(int i = start; i < end; i++) hash = 31 * hash + data[i];
+        return hash;
+    }
+
+    static boolean equals(byte symbol[], byte data[], int start, int end) {
+        if(symbol.length != end - start) return false;
+        for(int i = 0; i < symbol.length; i++) {
+            if(symbol[i] != data[start + i]) return false;
+        }
+        return true;
+    }
+
+    public int getId(byte data[], int start, int end) {
+        int hash = hash(data, start, end);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while(table[slot] != 0) {
+            int id = table[slot] - 1;
+            if(hashes[id] == hash && equals(symbols[id], data, start, end)) return id;
+            slot = (slot + 1) & mask;
+        }
+        if(size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        symbols[id] = Arrays.copyOfRange(data, start, end);
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if(size * 2 > table.length) rehash();
+        return id;
+    }
+
+    void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for(int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while(table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+    public int getId(String symbol) {
+        byte data[] = symbol.getBytes(UTF8);
+        int id = getId(data, 0, data.length);
+        if(strings[id] == null) strings[id] = symbol;
+        return id;
+    }
+
+    public String get(int id) {
+        if(strings[id] == null) strings[id] = new String(symbols[id], UTF8);
+        return strings[id];
+    }
+
+    public int size() {
+        return size;
+    }
+}
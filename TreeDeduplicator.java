@@ -0,0 +1,68 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+import java.util.*;
+
+// finds structurally identical trees of an n-best list before they are merged.
+// Subtrees are hash-consed bottom-up (label and canonical ids of the children),
+// so that checking a tree is linear in its size. Trees must share their symbol
+// table, which is the case for the trees of a sentence.
+class TreeDeduplicator {
+    HashMap<SubtreeInterner.Key, Integer> ids = new HashMap<SubtreeInterner.Key, Integer>();
+    HashMap<Integer, CompactTree> trees = new HashMap<Integer, CompactTree>(); // canonical id of the root -> first tree
+    public int duplicates = 0;
+
+    int order[] = new int[64];
+    int scratch[] = new int[64];
+
+    // canonical id of the subtree at node, also stored in canonical[] for each node if not null
+    public int intern(CompactTree tree, int node, int canonical[]) {
+        if(canonical == null) {
+            if(scratch.length < tree.size) scratch = new int[Math.max(tree.size, scratch.length * 2)];
+            canonical = scratch;
+        }
+        if(order.length < tree.size) order = new int[Math.max(tree.size, order.length * 2)];
+        // nodes of the subtree, parents before children, then ids from the last one
+        int num = 0;
+        order[num++] = node;
+        for(int i = 0; i < num; i++) {
+            for(int child = tree.firstChild[order[i]]; child != -1; child = tree.nextSibling[child]) order[num++] = child;
+        }
+        for(int j = num - 1; j >= 0; j--) {
+            int current = order[j];
+            int key[] = new int[tree.numChildren[current] + 1];
+            key[0] = tree.label[current];
+            int i = 1;
+            for(int child = tree.firstChild[current]; child != -1; child = tree.nextSibling[child]) {
+                key[i++] = canonical[child];
+            }
+            SubtreeInterner.Key wrapped = new SubtreeInterner.Key(key);
+            Integer id = ids.get(wrapped);
+            if(id == null) {
+                id = ids.size();
+                ids.put(wrapped, id);
+            }
+            canonical[current] = id;
+        }
+        return canonical[node];
+    }
+
+    // the tree identical to this one that was added before, or null if it is new
+    public CompactTree add(CompactTree tree) {
+        int id = intern(tree, tree.root, null);
+        CompactTree first = trees.get(id);
+        if(first != null) {
+            duplicates++;
+            return first;
+        }
+        trees.put(id, tree);
+        return null;
+    }
+}
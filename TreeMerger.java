@@ -10,80 +10,365 @@ GNU General Public License for more details.
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
 
-class TreeMerger {
+class TreeMerger implements Cloneable {
     public static final int INPUT_SEXP = 1;
     public static final int INPUT_CONLL = 2;
     public static final int OUTPUT_SEXP = 3;
     public static final int OUTPUT_CONLL = 4;
     public static final int OUTPUT_FSM = 5;
+    public static final int MERGE_INCREMENTAL = 6;
+    public static final int MERGE_BATCH = 7;
+    public static final int OUTPUT_BIN = 8;
 
     public int outputFormat = OUTPUT_SEXP;
     public int inputFormat = INPUT_SEXP;
     public String orSymbol = "-OR-";
     public boolean expandFsm = false;
+    public boolean projective = false; // place OR nodes next to their alternatives in CoNLL output
     public int limit = -1;
+    public int maxUnique = -1;
+    public double margin = -1;
+    public int mergeMode = MERGE_INCREMENTAL;
+
+    public int numThreads = 1;
+    public String serve; // port or unix socket of the server, null to merge stdin
+    public Vector<String> inputs = new Vector<String>(); // files or directories, stdin if empty
+    public String outputDir; // one output file per shard of the inputs, stdout if null
+    public long shardSize = 16 << 20;
+    public boolean weights = false;
+    public int kBest = 0;
+    public int maxNodes = 0; // budget of incremental merges, 0 for none
+    public long maxMillis = 0;
+    // hypertrees whose merge stopped at the budget, with the number of trees merged,
+    // until their sentence is written (see budgetCut())
+    Map<Node, Integer> budgetCuts = Collections.synchronizedMap(new IdentityHashMap<Node, Integer>());
+
+    public Metrics metrics; // null unless -S
+    public int statsInterval = 0; // seconds between stats on stderr, 0 for only at the end
+    long lastStats;
+
+    public OutputBuffer out;
+    public FsmWriter fsmWriter;
 
     public void mergeTrees() {
-        Vector<Node> trees = new Vector<Node>();
+        out = new OutputBuffer(System.out);
+        fsmWriter = newFsmWriter(out);
+        lastStats = System.currentTimeMillis();
         try {
-            BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-            boolean wasNull = false;
-            while(true) {
-                Node tree = null;
-                if(inputFormat == INPUT_CONLL) tree = Node.readCoNLL(input);
-                else if(inputFormat == INPUT_SEXP) tree = Node.readSexp(input);
-                if(tree == null) {
-                    if(wasNull) break;
-                    Node output = trees.get(0);
-                    for(int i = 1; i < trees.size(); i++) {
-                        Vector<Node> nodes = getDifferences(output, trees.get(i));
-                        if(nodes.size() > 0) {
-                            Node common = commonParent(nodes);
-                            Node merged = mergeAt(output, trees.get(i), common);
-                            Node minimized = minimizeTree(merged); 
-                            output = minimized;
-                        }
-                    }
-                    if(outputFormat == OUTPUT_CONLL) System.out.println(output.toCoNLL());
-                    else if(outputFormat == OUTPUT_SEXP) System.out.println(output.toSexp());
-                    else if(outputFormat == OUTPUT_FSM) {
-                        nextState = 1;
-                        printHyperGraph(output, 0, expandFsm);
-                        System.out.println();
-                    }
-                    trees.clear();
-                    wasNull = true;
-                } else {
-                    wasNull = false;
-                    if((limit > 0 && trees.size() < limit) || limit < 0) trees.add(tree);
-                }
-            }
-            if(trees.size() > 0) {
-                Node output = trees.get(0);
-                for(int i = 1; i < trees.size(); i++) {
-                    Vector<Node> nodes = getDifferences(output, trees.get(i));
-                    if(nodes.size() > 0) {
-                        Node common = commonParent(nodes);
-                        Node merged = mergeAt(output, trees.get(i), common);
-                        Node minimized = minimizeTree(merged); 
-                        output = minimized;
+            ByteTreeReader input = ByteTreeReader.stdin();
+            if(inputs.size() > 0) {
+                new ShardedMerger(this).merge(inputs);
+            } else if(numThreads > 1) {
+                mergeTreesParallel(input);
+            } else {
+                Node output;
+                int sentence = 0;
+                while(null != (output = nextSentence(input, metrics))) {
+                    warnBudget("sentence " + sentence++, budgetCut(output));
+                    long start = metrics == null ? 0 : Metrics.now();
+                    write(output, out, fsmWriter, metrics);
+                    // batch writes, unless the input is not coming fast enough
+                    if(input.hasBufferedInput()) out.flushIfFull();
+                    else out.flush();
+                    if(metrics != null) {
+                        metrics.time(Metrics.OUTPUT, start);
+                        metrics.endSentence();
+                        printStats(false);
                     }
                 }
-                if(outputFormat == OUTPUT_CONLL) System.out.println(output.toCoNLL());
-                else if(outputFormat == OUTPUT_SEXP) System.out.println(output.toSexp());
-                else if(outputFormat == OUTPUT_FSM) {
-                    nextState = 1;
-                    printHyperGraph(output, 0, expandFsm);
-                    System.out.println();
-                }
             }
+            if(outputDir == null) fsmWriter.close(); // shard outputs are closed by ShardedMerger
+            out.flush();
+            if(metrics != null) printStats(true);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    // json stats on stderr, at the end or every statsInterval seconds
+    void printStats(boolean last) {
+        long now = System.currentTimeMillis();
+        if(!last && (statsInterval <= 0 || now - lastStats < statsInterval * 1000L)) return;
+        lastStats = now;
+        System.err.println(metrics.toJson(fsmWriter, out));
+    }
+
+    // same settings, for a caller that changes some of them (see MergeServer)
+    public TreeMerger copy() {
+        try {
+            return (TreeMerger) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public HyperTreeBuilder newBuilder() {
+        return new HyperTreeBuilder(this);
+    }
+
+    static void countTrees(NBestFilter filter, Metrics metrics) {
+        metrics.treesRead += filter.numRead;
+        metrics.treesMerged += filter.numKept;
+        metrics.duplicates += filter.duplicates();
+    }
+
+    // records sentences whose merge stopped at the budget, trees left out are not counted as merged
+    void countBudget(HyperTreeBuilder builder, Metrics metrics) {
+        if(builder == null || !builder.truncated) return;
+        budgetCuts.put(builder.result(), builder.numMerged());
+        if(metrics != null) {
+            metrics.overBudget++;
+            metrics.treesMerged -= builder.size() - builder.numMerged();
+        }
+    }
+
+    // number of trees merged in a hypertree whose merge stopped at the budget, -1 if
+    // it did not. Called once per sentence, by the thread that writes them in order.
+    int budgetCut(Node merged) {
+        Integer numMerged = merged == null ? null : budgetCuts.remove(merged);
+        return numMerged == null ? -1 : numMerged;
+    }
+
+    static void warnBudget(String sentence, int numMerged) {
+        if(numMerged >= 0) System.err.println("WARNING: merge budget exceeded in " + sentence + ", " + numMerged + " trees merged");
+    }
+
+    CompactTree readTree(ByteTreeReader input, SymbolTable symbols) throws IOException {
+        if(inputFormat == INPUT_CONLL) return input.readCoNLL(symbols);
+        else if(inputFormat == INPUT_SEXP) return input.readSexp(symbols);
+        return null;
+    }
+
+    // reads the n-best list of the next sentence, returns null at the end of the input.
+    // Only the trees accepted by an NBestFilter are kept.
+    public Vector<CompactTree> readSentence(ByteTreeReader input) throws IOException {
+        return readSentence(input, null);
+    }
+
+    public Vector<CompactTree> readSentence(ByteTreeReader input, Metrics metrics) throws IOException {
+        SymbolTable symbols = new SymbolTable();
+        NBestFilter filter = new NBestFilter(this);
+        Vector<CompactTree> trees = null;
+        while(true) {
+            input.minScore = filter.minScore();
+            long start = metrics == null ? 0 : Metrics.now();
+            CompactTree tree = readTree(input, symbols);
+            if(metrics != null) metrics.time(Metrics.READ, start);
+            if(tree == null) {
+                if(metrics != null) countTrees(filter, metrics);
+                return trees;
+            }
+            if(trees == null) trees = new Vector<CompactTree>();
+            if(filter.accept(tree)) trees.add(tree);
+        }
+    }
+
+    // same as mergeCompact(readSentence(input)) but trees are merged as soon as they are read
+    public Node readAndMergeSentence(ByteTreeReader input) throws IOException {
+        return readAndMergeSentence(input, null);
+    }
+
+    public Node readAndMergeSentence(ByteTreeReader input, Metrics metrics) throws IOException {
+        SymbolTable symbols = new SymbolTable();
+        NBestFilter filter = new NBestFilter(this);
+        HyperTreeBuilder builder = null;
+        while(true) {
+            // trees are not built once the budget is exceeded
+            if(builder != null && builder.isFull()) input.minScore = Double.POSITIVE_INFINITY;
+            else input.minScore = filter.minScore();
+            long start = metrics == null ? 0 : Metrics.now();
+            CompactTree tree = readTree(input, symbols);
+            if(metrics != null) metrics.time(Metrics.READ, start);
+            if(tree == null) {
+                if(metrics != null) countTrees(filter, metrics);
+                countBudget(builder, metrics);
+                return builder == null ? null : builder.result();
+            }
+            if(builder == null) builder = new HyperTreeBuilder(this, metrics);
+            if(filter.accept(tree)) builder.add(tree);
+            else if(filter.raised != null) {
+                if(keepsScores()) addScore(builder.result(), tree, tree.root, tree.score);
+            }
+            else if(builder.isFull()) builder.truncated = true;
+        }
+    }
+
+    // reads and merges the next sentence according to mergeMode, null at the end of the input
+    public Node nextSentence(ByteTreeReader input, Metrics metrics) throws IOException {
+        if(mergeMode == MERGE_BATCH) return mergeSentence(readSentence(input, metrics), metrics);
+        return readAndMergeSentence(input, metrics);
+    }
+
+    // merges and writes all the sentences of the input, the caller closes fsm. Returns
+    // the number of sentences. Sentences cut by the budget are added to cuts as
+    // {sentence, trees merged}, or reported right away if cuts is null.
+    public int mergeAll(ByteTreeReader input, OutputBuffer output, FsmWriter fsm, Metrics metrics, Vector<int[]> cuts) throws IOException {
+        Node tree;
+        int sentence = 0;
+        while(null != (tree = nextSentence(input, metrics))) {
+            int numMerged = budgetCut(tree);
+            if(cuts == null) warnBudget("sentence " + sentence, numMerged);
+            else if(numMerged >= 0) cuts.add(new int[] {sentence, numMerged});
+            sentence++;
+            long start = metrics == null ? 0 : Metrics.now();
+            write(tree, output, fsm, metrics);
+            output.flushIfFull();
+            if(metrics != null) {
+                metrics.time(Metrics.OUTPUT, start);
+                metrics.endSentence();
+            }
+        }
+        return sentence;
+    }
+
+    public FsmWriter newFsmWriter(OutputBuffer output) {
+        if(outputFormat == OUTPUT_BIN) return new BinaryWriter(output, expandFsm, weights);
+        return new FsmWriter(output, expandFsm, weights);
+    }
+
+    // merges a whole n-best list according to mergeMode, null if there is none
+    public Node mergeSentence(Vector<CompactTree> trees) {
+        return mergeSentence(trees, null);
+    }
+
+    public Node mergeSentence(Vector<CompactTree> trees, Metrics metrics) {
+        if(trees == null) return null;
+        if(mergeMode == MERGE_BATCH) return new BatchMerger(this, metrics).merge(trees);
+        return mergeCompact(trees, metrics);
+    }
+
+    public Node mergeCompact(Vector<CompactTree> trees) {
+        return mergeCompact(trees, null);
+    }
+
+    public Node mergeCompact(Vector<CompactTree> trees, Metrics metrics) {
+        HyperTreeBuilder builder = new HyperTreeBuilder(this, metrics);
+        for(CompactTree tree: trees) builder.add(tree);
+        countBudget(builder, metrics);
+        return builder.result();
+    }
+
+    public void write(Node output, OutputBuffer out, FsmWriter fsm) {
+        write(output, out, fsm, null);
+    }
+
+    // metrics, if not null, count non-projective CoNLL outputs
+    public void write(Node output, OutputBuffer out, FsmWriter fsm, Metrics metrics) {
+        if(kBest > 0) {
+            writeKBest(output, out);
+        } else if(outputFormat == OUTPUT_CONLL) {
+            output.writeCoNLL(out, projective);
+            // the numbering is cached by writeCoNLL(), the check is O(n log n)
+            if(metrics != null && !output.isProjectiveCoNLL(projective)) metrics.nonProjective++;
+            out.append('\n');
+        } else if(outputFormat == OUTPUT_SEXP) {
+            output.writeSexp(out);
+            out.append('\n');
+        } else if(outputFormat == OUTPUT_FSM || outputFormat == OUTPUT_BIN) {
+            fsm.startSentence();
+            fsm.print(output);
+            fsm.endSentence();
+        }
+    }
+
+    // the k best trees of the hypertree, each preceded by its score, in the same
+    // format as the input so that they can be merged again
+    void writeKBest(Node hypertree, OutputBuffer out) {
+        for(KBestExtractor.Derivation derivation: new KBestExtractor(hypertree).extract(kBest)) {
+            out.append(CompactTree.LOGPROB).append(' ').append(derivation.score).append('\n');
+            Node tree = derivation.toNode();
+            if(outputFormat == OUTPUT_CONLL) {
+                tree.writeCoNLLTree(out);
+            } else {
+                tree.writeSexp(out);
+            }
+            out.append('\n');
+        }
+        out.append('\n');
+    }
+
+    // merges one sentence on a worker thread, output is rendered to a private buffer.
+    // Binary output refers to the symbol table of the whole file, so it is rendered
+    // by the writer thread from the merged tree.
+    class SentenceTask implements Callable<OutputBuffer> {
+        Vector<CompactTree> trees;
+        Metrics metrics; // of this sentence, null if stats are disabled
+        Node merged;
+        int budgetCut = -1; // see budgetCut()
+        FsmWriter fsm;
+        Future<OutputBuffer> result;
+        SentenceTask(Vector<CompactTree> trees, Metrics metrics) {
+            this.trees = trees;
+            this.metrics = metrics;
+        }
+        public OutputBuffer call() {
+            Node tree = mergeSentence(trees, metrics);
+            trees = null;
+            budgetCut = budgetCut(tree);
+            if(outputFormat == OUTPUT_BIN) {
+                merged = tree;
+                return null;
+            }
+            long start = metrics == null ? 0 : Metrics.now();
+            OutputBuffer output = new OutputBuffer();
+            fsm = new FsmWriter(output, expandFsm, weights);
+            write(tree, output, fsm, metrics);
+            if(metrics != null) metrics.time(Metrics.OUTPUT, start);
+            return output;
+        }
+    }
+
+    // reader (this thread) -> pool of workers -> writer thread, output stays in input order
+    void mergeTreesParallel(ByteTreeReader input) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        final BlockingQueue<SentenceTask> pending = new ArrayBlockingQueue<SentenceTask>(numThreads * 4);
+        final SentenceTask end = new SentenceTask(null, null);
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    SentenceTask task;
+                    int sentence = 0;
+                    while(end != (task = pending.take())) {
+                        OutputBuffer output = task.result.get();
+                        warnBudget("sentence " + sentence++, task.budgetCut);
+                        long start = task.metrics == null ? 0 : Metrics.now();
+                        if(output == null) write(task.merged, out, fsmWriter);
+                        else out.append(output);
+                        fsmWriter.addCounts(task.fsm);
+                        task.result = null;
+                        task.merged = null;
+                        if(pending.isEmpty()) out.flush();
+                        else out.flushIfFull();
+                        if(task.metrics != null) {
+                            task.metrics.time(Metrics.OUTPUT, start);
+                            task.metrics.endSentence();
+                            metrics.add(task.metrics);
+                            printStats(false);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        };
+        writer.start();
+        while(true) {
+            Metrics sentenceMetrics = metrics == null ? null : new Metrics();
+            Vector<CompactTree> trees = readSentence(input, sentenceMetrics);
+            if(trees == null) break;
+            SentenceTask task = new SentenceTask(trees, sentenceMetrics);
+            task.result = pool.submit(task);
+            pending.put(task); // blocks when the writer is too far behind
+        }
+        pending.put(end);
+        writer.join();
+        pool.shutdown();
+    }
+
     // not used yet
     void setOrNodes(Node tree, String orSymbol) {
         if(tree.label.equals(orSymbol)) tree.isOrNode = true;
@@ -95,24 +380,104 @@ class TreeMerger {
 
     Vector<Node> expandOrChildren(Node tree) {
         Vector<Node> output = new Vector<Node>();
-        for(Node child: tree.children) {
-            if(child.isOrNode) output.addAll(expandOrChildren(child));
-            else output.add(child);
+        // OR nodes being expanded, with the index of their next child
+        Node stack[] = new Node[16];
+        int next[] = new int[16];
+        int top = 0;
+        stack[top] = tree;
+        next[top++] = 0;
+        while(top > 0) {
+            Node node = stack[top - 1];
+            if(next[top - 1] == node.children.size()) {
+                top--;
+                continue;
+            }
+            Node child = node.children.get(next[top - 1]++);
+            if(!child.isOrNode) {
+                output.add(child);
+                continue;
+            }
+            if(top == stack.length) {
+                stack = Arrays.copyOf(stack, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+            }
+            stack[top] = child;
+            next[top++] = 0;
         }
         return output;
     }
 
     public Node minimizeTree(Node tree) {
-        if(tree.isOrNode) {
-            // all directly accessible OR-nodes should be merged with this one
+        return minimizeTree(tree, (Metrics) null);
+    }
+
+    public Node minimizeTree(Node tree, Metrics metrics) {
+        long start = metrics == null ? 0 : Metrics.now();
+        tree.depth = 0;
+        RedundancyChecker checker = new RedundancyChecker(tree);
+        Node output = minimizeTree(tree, checker);
+        output.parent = null;
+        if(metrics != null) {
+            metrics.addRedundancyCounts(checker);
+            metrics.time(Metrics.MINIMIZE_TREE, start);
+        }
+        return output;
+    }
+
+    // tree.depth must be set, depths of the descendants are updated on the way down
+
+    Node minimizeTree(Node tree, RedundancyChecker checker) {
+        // nodes whose children are being minimized, with the index of the next child and their size so far
+        Node stack[] = new Node[16];
+        int next[] = new int[16];
+        int size[] = new int[16];
+        int top = 0;
+        Node node = tree;
+        while(true) {
+            node = minimizeOrNode(node, checker);
+            if(top == stack.length) {
+                stack = Arrays.copyOf(stack, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+                size = Arrays.copyOf(size, top * 2);
+            }
+            stack[top] = node;
+            next[top] = 0;
+            size[top++] = 1;
+            Node result = null; // minimized child, replaces the previous child of the node on top
+            while(top > 0) {
+                Node parent = stack[top - 1];
+                if(result != null) {
+                    result.parent = parent;
+                    parent.children.set(next[top - 1] - 1, result);
+                    size[top - 1] += result.subtreeSize;
+                }
+                if(next[top - 1] < parent.children.size()) {
+                    node = parent.children.get(next[top - 1]++);
+                    node.depth = parent.depth + 1;
+                    break;
+                }
+                parent.subtreeSize = size[top - 1];
+                stack[--top] = null;
+                result = parent;
+            }
+            if(top == 0) return result;
+        }
+    }
+
+    // all directly accessible OR nodes are merged with this one, and alternatives that are
+    // redundant given another one are dropped. Returns the node that takes the place of
+    // tree, which is its only alternative if there is one left.
+    Node minimizeOrNode(Node tree, RedundancyChecker checker) {
+        while(tree.isOrNode) {
             Vector<Node> children = expandOrChildren(tree);
-            Vector<Node> output = new Vector<Node>();
+            ArrayList<Node> output = new ArrayList<Node>();
             for(int i = 0; i < children.size(); i++) {
                 boolean keep = true;
                 for(int j = 0; j < children.size(); j++) {
-                    if(i != j && isRedundant(children.get(j), children.get(i))) {
+                    if(i != j && checker.isRedundant(children.get(j), children.get(i))) {
                         // if red(a,b) and red(b,a): we have to keep one!
-                        if(!(i < j && isRedundant(children.get(i), children.get(j)))) {
+                        if(!(i < j && checker.isRedundant(children.get(i), children.get(j)))) {
+                            if(keepsScores()) mergeScores(children.get(j), children.get(i));
                             keep = false;
                             break;
                         }
@@ -121,142 +486,462 @@ class TreeMerger {
                 if(keep) output.add(children.get(i));
             }
             tree.children = output;
-            if(tree.children.size() == 1) return minimizeTree(tree.children.firstElement());
-        }
-        for(int i = 0; i < tree.children.size(); i++) {
-            Node node = minimizeTree(tree.children.get(i));
-            node.parent = tree;
-            tree.children.set(i, node);
+            if(tree.children.size() != 1) break;
+            tree.children.get(0).depth = tree.depth;
+            tree = tree.children.get(0);
         }
         return tree;
     }
 
+    // scores of the nodes are only read by weighted fsm output and k-best extraction
+    boolean keepsScores() {
+        return weights || kBest > 0;
+    }
+
     public boolean isRedundant(Node tree1, Node tree2) { // tree2 is redundant given tree1 
-        if(tree1.isOrNode && tree2.isOrNode) {
-            for(Node child: tree2.children) {
-                if(!isRedundant(tree1, child)) return false;
-            }
-            return true;
-        } else if(tree2.isOrNode) {
-            return false; // tree1 should be a or-node
-        } else if(tree1.isOrNode) {
-            for(Node child: tree1.children) {
-                if(isRedundant(child, tree2)) return true;
-            }
-            return false;
-        } else {
-            if(!(tree1.label.equals(tree2.label) && tree1.children.size() == tree2.children.size())) return false;
-            for(int i = 0; i < tree1.children.size(); i++) {
-                if(!isRedundant(tree1.children.get(i), tree2.children.get(i))) return false;
-            }
-            return true;
+        if(isMismatch(tree1, tree2)) return false;
+        // pairs being checked, with the index of their next pair of children
+        Node stack1[] = new Node[16];
+        Node stack2[] = new Node[16];
+        int next[] = new int[16];
+        int top = 0;
+        stack1[top] = tree1;
+        stack2[top] = tree2;
+        next[top++] = 0;
+        boolean result = false;
+        boolean returned = false; // result is the one of the last pair
+        while(top > 0) {
+            Node node1 = stack1[top - 1], node2 = stack2[top - 1];
+            boolean any = node1.isOrNode && !node2.isOrNode; // one alternative of node1 is enough, otherwise all pairs are needed
+            if(returned && result == any) { // decided by the last pair
+                top--;
+                continue;
+            }
+            returned = true;
+            int i = next[top - 1]++;
+            if(i == (node2.isOrNode ? node2.children.size() : node1.children.size())) {
+                result = !any;
+                top--;
+                continue;
+            }
+            Node child1 = node2.isOrNode ? node1 : node1.children.get(i);
+            Node child2 = any ? node2 : node2.children.get(i);
+            if(isMismatch(child1, child2)) {
+                result = false;
+                continue;
+            }
+            returned = false;
+            if(top == stack1.length) {
+                stack1 = Arrays.copyOf(stack1, top * 2);
+                stack2 = Arrays.copyOf(stack2, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+            }
+            stack1[top] = child1;
+            stack2[top] = child2;
+            next[top++] = 0;
         }
+        return result;
     }
 
-    public Node mergeAt(Node tree1, Node tree2, Node mergePointFromTree1) {
-        if(tree1 == mergePointFromTree1) {
-            Node output = new Node();
-            output.isOrNode = true;
-            output.label = orSymbol;
-            output.children.add(tree1);
-            output.children.add(tree2);
-            return output;
-        } else {
-            if(tree1.isOrNode) {
-                for(int i = 0; i < tree1.children.size(); i++) {
-                    Node node = mergeAt(tree1.children.get(i), tree2, mergePointFromTree1);
-                    node.parent = tree1;
-                    tree1.children.set(i, node);
+    // tree2 is not redundant given tree1, without looking at their children
+    static boolean isMismatch(Node tree1, Node tree2) {
+        if(tree1.isOrNode) return false;
+        if(tree2.isOrNode) return true; // tree1 should be a or-node
+        return !(tree1.sameLabel(tree2) && tree1.children.size() == tree2.children.size());
+    }
+
+    // same as isRedundant() for a tree without OR nodes in compact form
+    public boolean isRedundant(Node tree1, CompactTree tree2, int node2) {
+        if(isMismatch(tree1, tree2, node2)) return false;
+        // pairs being checked, with the index of the next child of stack1[] and the next child of stack2[]
+        Node stack1[] = new Node[16];
+        int stack2[] = new int[16];
+        int next[] = new int[16];
+        int next2[] = new int[16];
+        int top = 0;
+        stack1[top] = tree1;
+        stack2[top] = node2;
+        next[top] = 0;
+        next2[top++] = tree2.firstChild[node2];
+        boolean result = false;
+        boolean returned = false; // result is the one of the last pair
+        while(top > 0) {
+            Node node1 = stack1[top - 1];
+            boolean any = node1.isOrNode; // one alternative of node1 is enough, otherwise all pairs are needed
+            if(returned && result == any) { // decided by the last pair
+                top--;
+                continue;
+            }
+            returned = true;
+            int i = next[top - 1]++;
+            if(i == node1.children.size()) {
+                result = !any;
+                top--;
+                continue;
+            }
+            Node child1 = node1.children.get(i);
+            int child2 = stack2[top - 1];
+            if(!any) {
+                child2 = next2[top - 1];
+                next2[top - 1] = tree2.nextSibling[child2];
+            }
+            if(isMismatch(child1, tree2, child2)) {
+                result = false;
+                continue;
+            }
+            returned = false;
+            if(top == stack1.length) {
+                stack1 = Arrays.copyOf(stack1, top * 2);
+                stack2 = Arrays.copyOf(stack2, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+                next2 = Arrays.copyOf(next2, top * 2);
+            }
+            stack1[top] = child1;
+            stack2[top] = child2;
+            next[top] = 0;
+            next2[top++] = tree2.firstChild[child2];
+        }
+        return result;
+    }
+
+    static boolean isMismatch(Node tree1, CompactTree tree2, int node2) {
+        if(tree1.isOrNode) return false;
+        return !(tree1.sameLabel(tree2, node2) && tree1.children.size() == tree2.numChildren[node2]);
+    }
+
+    // raises the scores of the nodes of tree1 that represent the trees of tree2 to
+    // the scores of tree2 (tree2 must be redundant given tree1). Under OR nodes, the
+    // first alternative that represents a tree gets its score.
+    public void mergeScores(Node tree1, Node tree2) {
+        // pairs of nodes still to update
+        Node stack1[] = new Node[16];
+        Node stack2[] = new Node[16];
+        int top = 0;
+        stack1[top] = tree1;
+        stack2[top++] = tree2;
+        while(top > 0) {
+            top--;
+            Node node1 = stack1[top], node2 = stack2[top];
+            int needed = top + Math.max(node1.children.size(), node2.children.size());
+            if(needed > stack1.length) {
+                stack1 = Arrays.copyOf(stack1, Math.max(needed, stack1.length * 2));
+                stack2 = Arrays.copyOf(stack2, stack1.length);
+            }
+            if(node2.isOrNode) {
+                for(Node child: node2.children) {
+                    stack1[top] = node1;
+                    stack2[top++] = child;
+                }
+                continue;
+            }
+            if(node2.score > node1.score) node1.score = node2.score;
+            if(node1.isOrNode) {
+                for(Node child: node1.children) {
+                    if(isRedundant(child, node2)) {
+                        stack1[top] = child;
+                        stack2[top++] = node2;
+                        break;
+                    }
                 }
             } else {
-                if(!(tree1.label.equals(tree2.label) && tree1.children.size() == tree2.children.size())) return tree1; // cut mismatches
-                for(int i = 0; i < tree1.children.size(); i++) {
-                    Node node = mergeAt(tree1.children.get(i), tree2.children.get(i), mergePointFromTree1);
-                    node.parent = tree1;
-                    tree1.children.set(i, node);
+                for(int i = 0; i < node1.children.size(); i++) {
+                    stack1[top] = node1.children.get(i);
+                    stack2[top++] = node2.children.get(i);
                 }
             }
-            return tree1;
         }
     }
 
-    public Node commonParent(Vector<Node> nodes) {
-        Node node = nodes.firstElement();
-        for(int i = 1; i < nodes.size(); i++) {
-            Node peer = nodes.get(i);
-            Node parent1 = node;
-            while(parent1 != null) {
-                Node parent2 = peer;
-                while(parent1 != parent2 && parent2 != null) {
-                    parent2 = parent2.parent;
+    // same as mergeScores() for a tree in compact form, with the given score
+    public void addScore(Node tree1, CompactTree tree2, int node2, double score) {
+        // pairs of nodes still to update
+        Node stack1[] = new Node[16];
+        int stack2[] = new int[16];
+        int top = 0;
+        stack1[top] = tree1;
+        stack2[top++] = node2;
+        while(top > 0) {
+            top--;
+            Node node = stack1[top];
+            int compact = stack2[top];
+            if(score > node.score) node.score = score;
+            if(node.isOrNode) {
+                for(Node child: node.children) {
+                    if(isRedundant(child, tree2, compact)) {
+                        stack1[top] = child;
+                        stack2[top++] = compact;
+                        break;
+                    }
+                }
+            } else {
+                if(top + node.children.size() > stack1.length) {
+                    stack1 = Arrays.copyOf(stack1, Math.max(top + node.children.size(), stack1.length * 2));
+                    stack2 = Arrays.copyOf(stack2, stack1.length);
                 }
-                if(parent1 == parent2) break;
-                parent1 = parent1.parent;
+                int child2 = tree2.firstChild[compact];
+                for(int i = 0; i < node.children.size(); i++) {
+                    stack1[top] = node.children.get(i);
+                    stack2[top++] = child2;
+                    child2 = tree2.nextSibling[child2];
+                }
+            }
+        }
+    }
+
+    // puts an OR node at the merge point of tree1 with the subtree of tree2 at the
+    // same position, which is the only part of tree2 converted to Node objects.
+    // Scores of the trees that went through tree1 are kept, the caller has to add
+    // the score of tree2 to the result with addScore()
+    public Node mergeAt(Node tree1, CompactTree tree2, int node2, Node mergePointFromTree1) {
+        Vector<Node> path = pathTo(tree1, mergePointFromTree1);
+        if(path == null) return tree1;
+        for(int i = 0; i < path.size() - 1; i++) {
+            Node node = path.get(i);
+            if(node.isOrNode) continue;
+            if(!(node.sameLabel(tree2, node2) && node.children.size() == tree2.numChildren[node2])) return tree1; // cut mismatches
+            node2 = tree2.firstChild[node2];
+            for(int j = node.children.indexOf(path.get(i + 1)); j > 0; j--) node2 = tree2.nextSibling[node2];
+        }
+        return replaceMergePoint(tree1, path, newOrNode(mergePointFromTree1, tree2.toNode(node2)));
+    }
+
+    // nodes from root down to node, following parent links, null if node is not under root
+    static Vector<Node> pathTo(Node root, Node node) {
+        Vector<Node> path = new Vector<Node>();
+        for(; node != null; node = node.parent) {
+            path.add(node);
+            if(node == root) {
+                Collections.reverse(path);
+                return path;
             }
-            node = parent1;
+        }
+        return null;
+    }
+
+    Node newOrNode(Node tree1, Node tree2) {
+        Node output = new Node();
+        output.isOrNode = true;
+        output.label = orSymbol;
+        output.children.add(tree1);
+        output.children.add(tree2);
+        output.score = Math.max(tree1.score, tree2.score);
+        return output;
+    }
+
+    // puts the OR node in place of the last node of the path, returns the new root
+    static Node replaceMergePoint(Node root, Vector<Node> path, Node orNode) {
+        if(path.size() == 1) return orNode;
+        Node parent = path.get(path.size() - 2);
+        parent.children.set(parent.children.indexOf(path.lastElement()), orNode);
+        orNode.parent = parent;
+        for(int i = 0; i < path.size() - 1; i++) path.get(i).subtreeSize = 0; // the subtree changed, size is recomputed by minimizeTree()
+        return root;
+    }
+
+    // lowest common ancestor of the nodes, or null if they are not in the same tree.
+    // Uses Node.depth to climb from both nodes at the same pace, which is linear in
+    // the depth instead of quadratic.
+    public Node commonParent(Vector<Node> nodes) {
+        Node node = nodes.firstElement();
+        for(int i = 1; i < nodes.size() && node != null; i++) {
+            node = commonParent(node, nodes.get(i));
         }
         return node;
     }
 
-    public Vector<Node> getDifferences(Node tree1, Node tree2) {
-        Vector<Node> output = new Vector<Node>();
-        if(tree1.isOrNode) {
-            Vector<Node> argmin = null;
-            int min = 0;
-            for(Node child: tree1.children) {
-                Vector<Node> result = getDifferences(child, tree2);
-                int size = 0;
-                for(Node node: result) size += node.size();
-                if(argmin == null || size < min) {
+    // a stale depth can only be detected on the way up, after the other node may
+    // have climbed past the common parent, so the fallback starts from the arguments
+    Node commonParent(Node node1, Node node2) {
+        Node start1 = node1, start2 = node2;
+        while(node1 != node2) {
+            if(node1.depth >= node2.depth) {
+                if(!hasValidDepth(node1)) return commonParentWithoutDepth(start1, start2);
+                if(node1.depth == 0) return null;
+                node1 = node1.parent;
+            } else {
+                if(!hasValidDepth(node2)) return commonParentWithoutDepth(start1, start2);
+                node2 = node2.parent;
+            }
+        }
+        return node1;
+    }
+
+    // depths are only valid on trees that went through setParent() or minimizeTree()
+    static boolean hasValidDepth(Node node) {
+        if(node.parent == null) return node.depth == 0;
+        return node.parent.depth == node.depth - 1;
+    }
+
+    Node commonParentWithoutDepth(Node node1, Node node2) {
+        int depth1 = 0, depth2 = 0;
+        for(Node parent = node1.parent; parent != null; parent = parent.parent) depth1++;
+        for(Node parent = node2.parent; parent != null; parent = parent.parent) depth2++;
+        for(; depth1 > depth2; depth1--) node1 = node1.parent;
+        for(; depth2 > depth1; depth2--) node2 = node2.parent;
+        while(node1 != node2) {
+            node1 = node1.parent;
+            node2 = node2.parent;
+        }
+        return node1;
+    }
+
+    // state of collectDifferences() for a node of tree1 that is an OR node or that
+    // matches node2 of tree2
+    static class DifferenceFrame {
+        Node tree1;
+        int node2;
+        int child2; // next child of node2
+        int next; // index of the next child of tree1
+        Vector<Node> output;
+        int cost, bound;
+        Vector<Node> argmin, result; // OR nodes: differences of the best alternative so far, and of the current one
+        int min, limit;
+
+        void start(Node tree1, int node2, Vector<Node> output, int cost, int bound) {
+            this.tree1 = tree1;
+            this.node2 = node2;
+            this.output = output;
+            this.cost = cost;
+            this.bound = bound;
+            next = 0;
+            argmin = null;
+            min = 0;
+        }
+
+        // value returned by the call for the previous child
+        void returned(int value) {
+            if(tree1.isOrNode) {
+                if(value < limit) {
                     argmin = result;
-                    min = size;
+                    min = value;
                 }
+            } else {
+                cost = value;
             }
+        }
+
+        int orNodeValue() {
+            if(argmin == null) return bound;
             output.addAll(argmin);
-            return output;
-        } else if(tree1.children.size() != tree2.children.size() || (tree1.label != null && !tree1.label.equals(tree2.label))) {
-            output.add(tree1);
-            return output;
-        } else {
-            for(int i = 0; i < tree1.children.size(); i++) {
-                output.addAll(getDifferences(tree1.children.get(i), tree2.children.get(i)));
-            }
+            return cost + min;
         }
+
+        void clear() {
+            tree1 = null;
+            output = argmin = result = null;
+        }
+    }
+
+    // nodes of tree1 where the subtree at node2 of tree2 differs. Under OR nodes, the
+    // alternative with the smallest total size of differences is chosen (the first
+    // one in case of ties).
+    public Vector<Node> getDifferences(Node tree1, CompactTree tree2, int node2) {
+        Vector<Node> output = new Vector<Node>();
+        collectDifferences(tree1, tree2, node2, output, 0, Integer.MAX_VALUE);
         return output;
     }
 
-    public int nextState = 1;
-    public HashMap<String, Integer> stateId = new HashMap<String, Integer>();
-    public void printHyperGraph(Node node, int from, boolean expand) {
-        int state = 0;
-        if(expand || node.children.size() == 0) {
-            state = nextState++;
-            for(Node child: node.children) {
-                printHyperGraph(child, state, expand);
+    // branch and bound: adds differences to output and returns cost plus their total
+    // size. Exploration stops as soon as the cost reaches bound, in which case the
+    // returned value is >= bound and the content of output should be ignored.
+    int collectDifferences(Node tree1, CompactTree tree2, int node2, Vector<Node> output, int cost, int bound) {
+        DifferenceFrame stack[] = new DifferenceFrame[16];
+        int top = 0;
+        int value = 0; // returned by the last call
+        // next call
+        Node call1 = tree1;
+        int call2 = node2;
+        Vector<Node> callOutput = output;
+        int callCost = cost, callBound = bound;
+        while(true) {
+            if(call1 != null) {
+                // mismatches and leaves return directly, other nodes get a frame
+                if(!call1.isOrNode && (call1.children.size() != tree2.numChildren[call2] || (call1.label != null && !call1.sameLabel(tree2, call2)))) {
+                    callOutput.add(call1);
+                    value = callCost + call1.size();
+                } else if(!call1.isOrNode && call1.children.size() == 0) {
+                    value = callCost;
+                } else {
+                    if(top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    if(stack[top] == null) stack[top] = new DifferenceFrame();
+                    stack[top++].start(call1, call2, callOutput, callCost, callBound);
+                    stack[top - 1].child2 = tree2.firstChild[call2];
+                    call1 = null;
+                    continue;
+                }
+                call1 = null;
+                if(top == 0) return value;
+                stack[top - 1].returned(value);
             }
-        } else {
-            String key = node.factorRepresentation();
-            if(stateId.containsKey(key)) {
-                state = stateId.get(key);
+            DifferenceFrame frame = stack[top - 1];
+            Node node1 = frame.tree1;
+            if(node1.isOrNode) {
+                if(frame.next < node1.children.size()) {
+                    // an alternative is only useful if strictly better than the best so far
+                    frame.limit = frame.argmin == null ? frame.bound - frame.cost : Math.min(frame.bound - frame.cost, frame.min);
+                    frame.result = new Vector<Node>();
+                    call1 = node1.children.get(frame.next++);
+                    call2 = frame.node2;
+                    callOutput = frame.result;
+                    callCost = 0;
+                    callBound = frame.limit;
+                    continue;
+                }
+                value = frame.orNodeValue();
             } else {
-                state = nextState++;
-                stateId.put(key, state);
-                for(Node child: node.children) {
-                    printHyperGraph(child, state, expand);
+                if(frame.next < node1.children.size() && frame.cost < frame.bound) {
+                    call1 = node1.children.get(frame.next++);
+                    call2 = frame.child2;
+                    frame.child2 = tree2.nextSibling[frame.child2];
+                    callOutput = frame.output;
+                    callCost = frame.cost;
+                    callBound = frame.bound;
+                    continue;
                 }
+                value = frame.cost;
             }
+            stack[--top].clear();
+            if(top == 0) return value;
+            stack[top - 1].returned(value);
         }
-        System.out.printf("%d %d %s\n", from, state, node.label); 
-        //if(node.children.size() == 0) System.out.printf("%d\n", state);
+    }
+
+    // -1 if the format is unknown
+    public static int parseInputFormat(String format) {
+        if(format.equals("sexp")) return INPUT_SEXP;
+        else if(format.equals("conll")) return INPUT_CONLL;
+        return -1;
+    }
+
+    public static int parseOutputFormat(String format) {
+        if(format.equals("sexp")) return OUTPUT_SEXP;
+        else if(format.equals("conll")) return OUTPUT_CONLL;
+        else if(format.equals("fsm")) return OUTPUT_FSM;
+        else if(format.equals("bin")) return OUTPUT_BIN;
+        return -1;
     }
 
     public static void usage() {
-        System.err.println("usage: java TreeMerger [-i <input-format>] [-o <output-format>] [-s <or-symbol>] [-e]");
+        System.err.println("usage: java TreeMerger [-i <input-format>] [-o <output-format>] [-s <or-symbol>] [-e] [<input-file|directory>...]");
         System.err.println("   -i|input (sexp|conll)     set input format, defaults to s-expression");
-        System.err.println("   -o|output (sexp|fsm)      set output format, defaults to s-expression");
+        System.err.println("   -o|output (sexp|conll|fsm|bin)  set output format, defaults to s-expression");
         System.err.println("   -s|symbol <symbol>        symbol used to annotate or-nodes, defaults to -OR-");
         System.err.println("   -e|expand                 expand fsm by not factorizing subtrees");
+        System.err.println("   -p|projective             number or-nodes next to their alternatives in CoNLL output");
         System.err.println("   -n|num <num>              only keep n parses");
+        System.err.println("   -u|unique <num>           only keep the first n distinct parses");
+        System.err.println("   -b|beam <margin>          only keep parses within margin of the best #logprob");
+        System.err.println("   -j|threads <num>          merge sentences in parallel, output keeps input order");
+        System.err.println("   -S|stats                  print timers and counters as json on stderr at the end");
+        System.err.println("   -P|stats-every <seconds>  also print them periodically");
+        System.err.println("   -m|merge (incremental|batch)  merge trees one by one, or all at once independently of their order");
+        System.err.println("   --max-nodes <num>         stop merging trees of a sentence once the hypertree has more nodes (incremental)");
+        System.err.println("   --max-ms <milliseconds>   stop merging trees of a sentence after that time (incremental)");
+        System.err.println("   -w|weights                add weights from the #logprob scores of the trees to the fsm");
+        System.err.println("   -k|kbest <num>            output the k best trees of the hypergraph instead (-o sexp or conll only)");
+        System.err.println("   -d|output-dir <dir>       write one output file per shard of the input files instead of stdout");
+        System.err.println("   -z|shard-size <megabytes>  split input files in shards of that size, merged in parallel with -j (default 16)");
+        System.err.println("   --serve <port|socket>     merge requests from a local socket instead of stdin (see MergeServer)");
         System.exit(1);
     }
     public static void main(String args[]) {
@@ -266,26 +951,72 @@ class TreeMerger {
                 usage();
             } else if(args[i].equals("-i") || args[i].equals("-input") || args[i].equals("--input")) {
                 if(i == args.length - 1) usage();
-                String format = args[++i];
-                if(format.equals("sexp")) merger.inputFormat = INPUT_SEXP;
-                else if(format.equals("conll")) merger.inputFormat = INPUT_CONLL;
+                int format = parseInputFormat(args[++i]);
+                if(format != -1) merger.inputFormat = format;
             } else if(args[i].equals("-o") || args[i].equals("-output") || args[i].equals("--output")) {
                 if(i == args.length - 1) usage();
-                String format = args[++i];
-                if(format.equals("sexp")) merger.outputFormat = OUTPUT_SEXP;
-                else if(format.equals("conll")) merger.outputFormat = OUTPUT_CONLL;
-                else if(format.equals("fsm")) merger.outputFormat = OUTPUT_FSM;
+                int format = parseOutputFormat(args[++i]);
+                if(format != -1) merger.outputFormat = format;
             } else if(args[i].equals("-s") || args[i].equals("-symbol") || args[i].equals("--symbol")) {
                 if(i == args.length - 1) usage();
                 merger.orSymbol = args[++i];
             } else if(args[i].equals("-e") || args[i].equals("-expand") || args[i].equals("--expand")) {
                 merger.expandFsm = true;
+            } else if(args[i].equals("-p") || args[i].equals("-projective") || args[i].equals("--projective")) {
+                merger.projective = true;
             } else if(args[i].equals("-n") || args[i].equals("-num") || args[i].equals("--num")) {
                 merger.limit = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-u") || args[i].equals("-unique") || args[i].equals("--unique")) {
+                if(i == args.length - 1) usage();
+                merger.maxUnique = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-b") || args[i].equals("-beam") || args[i].equals("--beam")) {
+                if(i == args.length - 1) usage();
+                merger.margin = Double.parseDouble(args[++i]);
+            } else if(args[i].equals("-m") || args[i].equals("-merge") || args[i].equals("--merge")) {
+                if(i == args.length - 1) usage();
+                String mode = args[++i];
+                if(mode.equals("incremental")) merger.mergeMode = MERGE_INCREMENTAL;
+                else if(mode.equals("batch")) merger.mergeMode = MERGE_BATCH;
+            } else if(args[i].equals("-max-nodes") || args[i].equals("--max-nodes")) {
+                if(i == args.length - 1) usage();
+                merger.maxNodes = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-max-ms") || args[i].equals("--max-ms")) {
+                if(i == args.length - 1) usage();
+                merger.maxMillis = Long.parseLong(args[++i]);
+            } else if(args[i].equals("-w") || args[i].equals("-weights") || args[i].equals("--weights")) {
+                merger.weights = true;
+            } else if(args[i].equals("-k") || args[i].equals("-kbest") || args[i].equals("--kbest")) {
+                if(i == args.length - 1) usage();
+                merger.kBest = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-S") || args[i].equals("-stats") || args[i].equals("--stats")) {
+                merger.metrics = new Metrics();
+            } else if(args[i].equals("-P") || args[i].equals("-stats-every") || args[i].equals("--stats-every")) {
+                if(i == args.length - 1) usage();
+                merger.metrics = new Metrics();
+                merger.statsInterval = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-d") || args[i].equals("-output-dir") || args[i].equals("--output-dir")) {
+                if(i == args.length - 1) usage();
+                merger.outputDir = args[++i];
+            } else if(args[i].equals("-z") || args[i].equals("-shard-size") || args[i].equals("--shard-size")) {
+                if(i == args.length - 1) usage();
+                long megabytes = Long.parseLong(args[++i]);
+                if(megabytes < 1) usage();
+                merger.shardSize = Math.min(megabytes, 1024) << 20; // a shard is mapped at once
+            } else if(args[i].equals("-serve") || args[i].equals("--serve")) {
+                if(i == args.length - 1) usage();
+                merger.serve = args[++i];
+            } else if(args[i].equals("-j") || args[i].equals("-threads") || args[i].equals("--threads")) {
+                if(i == args.length - 1) usage();
+                merger.numThreads = Integer.parseInt(args[++i]);
+            } else if(!args[i].startsWith("-")) {
+                merger.inputs.add(args[i]);
             } else {
                 usage();
             }
         }
-        merger.mergeTrees();
+        if(merger.outputDir != null && merger.inputs.size() == 0) usage();
+        if(merger.kBest > 0 && (merger.outputFormat == OUTPUT_FSM || merger.outputFormat == OUTPUT_BIN)) usage(); // k-best trees are text
+        if(merger.serve != null) new MergeServer(merger).serve(merger.serve);
+        else merger.mergeTrees();
     }
 }
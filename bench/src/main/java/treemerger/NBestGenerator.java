@@ -0,0 +1,108 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+package treemerger;
+
+import java.util.*;
+
+// synthetic n-best lists of dependency trees: a reference tree of the given length,
+// and k hypotheses where each word changes head or label with probability disagreement.
+// Heads always precede their dependent so that every hypothesis is a tree rooted at
+// the first word.
+class NBestGenerator {
+    static final String LABELS[] = {"SBJ", "OBJ", "NMOD", "ADV", "P", "PMOD", "VC", "AMOD"};
+
+    Random random;
+    int length;
+
+    NBestGenerator(long seed, int length) {
+        this.random = new Random(seed);
+        this.length = length;
+    }
+
+    int[] randomHeads() {
+        int heads[] = new int[length + 1];
+        heads[1] = 0;
+        for(int i = 2; i <= length; i++) heads[i] = 1 + random.nextInt(i - 1);
+        return heads;
+    }
+
+    String[] randomLabels() {
+        String labels[] = new String[length + 1];
+        labels[1] = "ROOT";
+        for(int i = 2; i <= length; i++) labels[i] = LABELS[random.nextInt(LABELS.length)];
+        return labels;
+    }
+
+    // returns k hypotheses as (heads, labels) pairs
+    List<Object[]> generate(int k, double disagreement) {
+        int heads[] = randomHeads();
+        String labels[] = randomLabels();
+        List<Object[]> output = new ArrayList<Object[]>();
+        for(int hypothesis = 0; hypothesis < k; hypothesis++) {
+            int newHeads[] = heads.clone();
+            String newLabels[] = labels.clone();
+            if(hypothesis > 0) {
+                for(int i = 2; i <= length; i++) {
+                    if(random.nextDouble() < disagreement) newHeads[i] = 1 + random.nextInt(i - 1);
+                    if(random.nextDouble() < disagreement) newLabels[i] = LABELS[random.nextInt(LABELS.length)];
+                }
+            }
+            output.add(new Object[] {newHeads, newLabels});
+        }
+        return output;
+    }
+
+    static String word(int i) {
+        return "w" + i;
+    }
+
+    // one sentence in CoNLL format, terminated by an empty line
+    String toCoNLL(List<Object[]> hypotheses) {
+        StringBuilder output = new StringBuilder();
+        for(Object[] hypothesis: hypotheses) {
+            int heads[] = (int[]) hypothesis[0];
+            String labels[] = (String[]) hypothesis[1];
+            output.append("#logprob -").append(random.nextDouble()).append("\n");
+            for(int i = 1; i <= length; i++) {
+                output.append(i).append("\t").append(word(i)).append("\t").append(word(i)).append("\tNN\t_\t_\t");
+                output.append(heads[i]).append("\t").append(labels[i]).append("\t_\t_\n");
+            }
+            output.append("\n");
+        }
+        output.append("\n");
+        return output.toString();
+    }
+
+    // one sentence as s-expressions, one tree per line, terminated by an empty line
+    String toSexp(List<Object[]> hypotheses) {
+        StringBuilder output = new StringBuilder();
+        for(Object[] hypothesis: hypotheses) {
+            int heads[] = (int[]) hypothesis[0];
+            String labels[] = (String[]) hypothesis[1];
+            List<List<Integer>> children = new ArrayList<List<Integer>>();
+            for(int i = 0; i <= length; i++) children.add(new ArrayList<Integer>());
+            for(int i = 2; i <= length; i++) children.get(heads[i]).add(i);
+            toSexp(1, children, labels, output);
+            output.append("\n");
+        }
+        output.append("\n");
+        return output.toString();
+    }
+
+    void toSexp(int node, List<List<Integer>> children, String labels[], StringBuilder output) {
+        output.append("(").append(labels[node]).append(" ").append(word(node));
+        for(int child: children.get(node)) {
+            output.append(" ");
+            toSexp(child, children, labels, output);
+        }
+        output.append(")");
+    }
+}
@@ -0,0 +1,197 @@
+/*This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; version 2 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+*/
+
+package treemerger;
+
+import java.util.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// one benchmark per stage of the merger, on one synthetic sentence.
+// Each operation processes a whole n-best list (or its hypertree), so the scores
+// are in sentences per second. Use "-prof gc" to get allocation rates.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeMergerBenchmark {
+    @Param({"10", "100"})
+    public int k;
+
+    @Param({"20", "60"})
+    public int length;
+
+    @Param({"0.02", "0.1"})
+    public double disagreement;
+
+    TreeMerger merger;
+    byte conll[];
+    byte sexp[];
+    Vector<CompactTree> trees;
+    Vector<Node> nodes;
+    Vector<Vector<Node>> differences; // between the first tree and each other tree
+    Node hypertree;
+    OutputBuffer output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        NBestGenerator generator = new NBestGenerator(42, length);
+        List<Object[]> hypotheses = generator.generate(k, disagreement);
+        conll = generator.toCoNLL(hypotheses).getBytes("UTF-8");
+        sexp = generator.toSexp(hypotheses).getBytes("UTF-8");
+        merger = new TreeMerger();
+        merger.inputFormat = TreeMerger.INPUT_CONLL;
+        trees = merger.readSentence(reader(conll));
+        nodes = new Vector<Node>();
+        for(CompactTree tree: trees) nodes.add(tree.toNode());
+        differences = new Vector<Vector<Node>>();
+        for(int i = 1; i < nodes.size(); i++) {
+            Vector<Node> result = merger.getDifferences(nodes.get(0), trees.get(i), trees.get(i).root);
+            if(result.size() > 0) differences.add(result);
+        }
+        hypertree = merger.mergeCompact(trees);
+        output = new OutputBuffer();
+    }
+
+    static ByteTreeReader reader(byte data[]) {
+        return new ByteTreeReader(Channels.newChannel(new ByteArrayInputStream(data)));
+    }
+
+    static BufferedReader bufferedReader(byte data[]) throws IOException {
+        return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"));
+    }
+
+    @Benchmark
+    public void readCoNLL(Blackhole hole) throws IOException {
+        ByteTreeReader input = reader(conll);
+        SymbolTable symbols = new SymbolTable();
+        CompactTree tree;
+        while(null != (tree = input.readCoNLL(symbols))) hole.consume(tree);
+    }
+
+    @Benchmark
+    public void readCoNLLNode(Blackhole hole) throws IOException {
+        BufferedReader input = bufferedReader(conll);
+        Node tree;
+        while(null != (tree = Node.readCoNLL(input))) hole.consume(tree);
+    }
+
+    @Benchmark
+    public void readSexp(Blackhole hole) throws IOException {
+        ByteTreeReader input = reader(sexp);
+        SymbolTable symbols = new SymbolTable();
+        CompactTree tree;
+        while(null != (tree = input.readSexp(symbols))) hole.consume(tree);
+    }
+
+    @Benchmark
+    public void readSexpNode(Blackhole hole) throws IOException {
+        BufferedReader input = bufferedReader(sexp);
+        Node tree;
+        while(null != (tree = Node.readSexp(input))) hole.consume(tree);
+    }
+
+    @Benchmark
+    public void getDifferences(Blackhole hole) {
+        for(int i = 1; i < trees.size(); i++) hole.consume(merger.getDifferences(nodes.get(0), trees.get(i), trees.get(i).root));
+    }
+
+    @Benchmark
+    public void commonParent(Blackhole hole) {
+        for(Vector<Node> result: differences) hole.consume(merger.commonParent(result));
+    }
+
+    // mergeAt modifies the hypertree, so each invocation starts from a fresh copy
+    @State(Scope.Thread)
+    public static class MergeState {
+        Node first;
+        Node common;
+        CompactTree second;
+
+        @Setup(Level.Invocation)
+        public void setup(TreeMergerBenchmark benchmark) {
+            TreeMerger merger = benchmark.merger;
+            first = benchmark.trees.get(0).toNode();
+            for(int i = 1; i < benchmark.trees.size(); i++) {
+                CompactTree tree = benchmark.trees.get(i);
+                Vector<Node> result = merger.getDifferences(first, tree, tree.root);
+                if(result.size() > 0) {
+                    second = tree;
+                    common = merger.commonParent(result);
+                    return;
+                }
+            }
+            second = benchmark.trees.get(0);
+            common = null;
+        }
+    }
+
+    @Benchmark
+    public Node mergeAt(MergeState state) {
+        return merger.mergeAt(state.first, state.second, state.second.root, state.common);
+    }
+
+    // minimizeTree modifies the hypertree, so it is run on a fresh unminimized merge
+    @State(Scope.Thread)
+    public static class MinimizeState {
+        Node merged;
+
+        @Setup(Level.Invocation)
+        public void setup(TreeMergerBenchmark benchmark) {
+            TreeMerger merger = benchmark.merger;
+            merged = benchmark.trees.get(0).toNode();
+            for(int i = 1; i < benchmark.trees.size(); i++) {
+                CompactTree tree = benchmark.trees.get(i);
+                Vector<Node> result = merger.getDifferences(merged, tree, tree.root);
+                if(result.size() > 0) merged = merger.mergeAt(merged, tree, tree.root, merger.commonParent(result));
+            }
+        }
+    }
+
+    @Benchmark
+    public Node minimizeTree(MinimizeState state) {
+        return merger.minimizeTree(state.merged);
+    }
+
+    @Benchmark
+    public Node mergeSentence() {
+        return merger.mergeCompact(trees);
+    }
+
+    @Benchmark
+    public int printHyperGraph() {
+        output.clear();
+        FsmWriter writer = new FsmWriter(output, false);
+        writer.startSentence();
+        writer.print(hypertree);
+        writer.endSentence();
+        return output.length();
+    }
+
+    @Benchmark
+    public int toCoNLL() {
+        output.clear();
+        hypertree.writeCoNLL(output);
+        return output.length();
+    }
+
+    @Benchmark
+    public int toSexp() {
+        output.clear();
+        hypertree.writeSexp(output);
+        return output.length();
+    }
+}
@@ -0,0 +1,82 @@
+#!/bin/bash
+# regression tests: compiles the merger and compares its output on example*.txt
+# with the files in test/expected. The tests of each option are in test/*.test,
+# which are sourced by this script and use check() and same() below.
+#
+# The outputs of the default modes (sexp, fsm, fsm -e, -n) are those of the
+# original TreeMerger, except:
+# - example3.fsm: the original reused state numbers of previous sentences; it is
+#   the same as the original run on each sentence separately;
+# - *.conll: nodes are numbered differently, the graphs are the same.
+#
+# usage: test/run-tests.sh [--update]
+#   --update  rewrite the expected files from the current output instead
+
+cd "$(dirname "$0")/.." || exit 1
+root=$(pwd)
+expected=$root/test/expected
+update=0
+[ "$1" = "--update" ] && update=1
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+mkdir -p "$work/classes"
+javac -nowarn -Xlint:-removal -d "$work/classes" *.java 2>&1 | grep -v "^Note:"
+[ -f "$work/classes/TreeMerger.class" ] || { echo "FAIL: compilation"; exit 1; }
+merger() { java -cp "$work/classes" TreeMerger "$@"; }
+
+failed=0
+fail() {
+    echo "FAIL: $1"
+    failed=$((failed + 1))
+}
+
+# compares the output of the merger on an example with an expected file
+check() {
+    name=$1; input=$2; shift 2
+    # warnings go after the output, their order relative to it depends on buffering
+    merger "$@" < "$input" > "$work/$name" 2> "$work/$name.err"
+    cat "$work/$name.err" >> "$work/$name"
+    if [ $update = 1 ]; then
+        mkdir -p "$expected"
+        cp "$work/$name" "$expected/$name"
+    elif ! cmp -s "$work/$name" "$expected/$name"; then
+        fail "$name (java TreeMerger $* < $input)"
+        diff "$expected/$name" "$work/$name" | head -10
+    fi
+}
+
+# compares $work/$name.a and $work/$name.b, the outputs of two equivalent commands
+same() {
+    name=$1
+    [ $update = 1 ] && return
+    if ! cmp -s "$work/$name.a" "$work/$name.b"; then
+        fail "$name"
+        diff "$work/$name.a" "$work/$name.b" | head -10
+    fi
+}
+
+for example in example1 example2; do
+    check $example.sexp $example.txt
+    check $example.conll $example.txt -o conll
+    check $example.fsm $example.txt -o fsm
+    check $example.fsm-e $example.txt -o fsm -e
+done
+check example3.sexp example3.txt -i conll
+check example3.conll example3.txt -i conll -o conll
+check example3.fsm example3.txt -i conll -o fsm
+check example3.fsm-e example3.txt -i conll -o fsm -e
+check example3.n3 example3.txt -i conll -n 3
+
+for test in "$root"/test/*.test; do
+    [ -f "$test" ] && . "$test"
+done
+
+if [ $update = 1 ]; then
+    echo "updated $expected"
+elif [ $failed = 0 ]; then
+    echo "all tests passed"
+else
+    echo "$failed test(s) failed"
+    exit 1
+fi